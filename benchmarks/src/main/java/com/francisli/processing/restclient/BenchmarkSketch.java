@@ -0,0 +1,34 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import processing.core.PApplet;
+
+/**
+ * A sketch for the benchmarks to hand their clients, counting the responses
+ * delivered by pre().
+ */
+public class BenchmarkSketch extends PApplet implements ResponseListener {
+    public int received;
+
+    public void responseReceived(HttpRequest request, HttpResponse response) {
+        received++;
+    }
+
+    public void requestFailed(HttpRequest request, Exception error) {
+        received++;
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time pre() takes at the start of a frame to deliver the
+ * responses waiting for it. With pending set to 0 this is the cost every
+ * frame pays when nothing has arrived. drainClonedMap is the baseline: the
+ * drain pre() used before completions were published through a queue.
+ *
+ * <p>Each invocation first publishes its pending responses, reusing the same
+ * requests and responses, since setting them up per invocation would swamp
+ * a sub-microsecond drain. fill and fillClonedMap measure that publishing
+ * alone, followed by a clear, to subtract from drain and drainClonedMap.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DrainBenchmark {
+    @Param({"0", "1", "100", "10000"})
+    public int pending;
+
+    BenchmarkSketch sketch;
+    RESTClient client;
+    HttpRequest[] requests;
+    HttpResponse[] responses;
+    HashMap<HttpRequest, HttpResponse> requestMap = new HashMap<HttpRequest, HttpResponse>();
+
+    @Setup
+    public void setup() throws IOException {
+        sketch = new BenchmarkSketch();
+        client = new RESTClient(sketch, "localhost", 80);
+        byte[] body = StubServer.json(1024);
+        requests = new HttpRequest[pending];
+        responses = new HttpResponse[pending];
+        for (int i = 0; i < pending; i++) {
+            BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+            response.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+            requests[i] = new GetRequest(client, "/items");
+            responses[i] = new HttpResponse(response);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.dispose();
+    }
+
+    @Benchmark
+    public int fill() {
+        for (int i = 0; i < pending; i++) {
+            client.put(requests[i], responses[i]);
+        }
+        client.completedRequests.clear();
+        client.completedCount.set(0);
+        return sketch.received;
+    }
+
+    @Benchmark
+    public int drain() throws Throwable {
+        for (int i = 0; i < pending; i++) {
+            client.put(requests[i], responses[i]);
+        }
+        client.pre();
+        return sketch.received;
+    }
+
+    @Benchmark
+    public int fillClonedMap() {
+        for (int i = 0; i < pending; i++) {
+            synchronized (client) {
+                requestMap.put(requests[i], responses[i]);
+            }
+        }
+        requestMap.clear();
+        return sketch.received;
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public int drainClonedMap() throws Throwable {
+        for (int i = 0; i < pending; i++) {
+            synchronized (client) {
+                requestMap.put(requests[i], responses[i]);
+            }
+        }
+        //// clone the waiting responses under the client's lock every frame, then remove each one under it again
+        HashMap<HttpRequest, HttpResponse> requestMapClone;
+        synchronized (client) {
+            requestMapClone = (HashMap<HttpRequest, HttpResponse>) requestMap.clone();
+        }
+        for (HttpRequest request: requestMapClone.keySet()) {
+            HttpResponse response = requestMapClone.get(request);
+            request.pre(response);
+            sketch.responseReceived(request, response);
+            response.close();
+            request.releaseConnection();
+            synchronized (client) {
+                requestMap.remove(request);
+            }
+        }
+        return sketch.received;
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.DiscardingEntityConsumer;
+import org.apache.hc.core5.http.nio.support.AsyncResponseBuilder;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.reactor.IOSession;
+import org.apache.hc.core5.reactor.IOSessionListener;
+import org.apache.hc.core5.reactor.ListenerEndpoint;
+
+/**
+ * A local server that speaks either HTTP/1.1 or HTTP/2 with prior knowledge,
+ * counting the connections clients open to it. Like StubServer, GET
+ * /bytes?size=N returns a JSON document of about N bytes.
+ */
+public class H2StubServer {
+    HttpAsyncServer server;
+    int port;
+    AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * @param policy FORCE_HTTP_1 or FORCE_HTTP_2
+     */
+    public H2StubServer(HttpVersionPolicy policy) throws Exception {
+        server = H2ServerBootstrap.bootstrap()
+                .setVersionPolicy(policy)
+                .setIOReactorConfig(IOReactorConfig.custom()
+                        .setIoThreadCount(Runtime.getRuntime().availableProcessors())
+                        .setTcpNoDelay(true)
+                        .build())
+                .setIOSessionListener(new IOSessionListener() {
+                    public void connected(IOSession session) {
+                        connections.incrementAndGet();
+                    }
+
+                    public void startTls(IOSession session) { }
+                    public void inputReady(IOSession session) { }
+                    public void outputReady(IOSession session) { }
+                    public void timeout(IOSession session) { }
+                    public void exception(IOSession session, Exception e) { }
+                    public void disconnected(IOSession session) { }
+                })
+                .register("*", new AsyncServerRequestHandler<Message<HttpRequest, Void>>() {
+                    public AsyncRequestConsumer<Message<HttpRequest, Void>> prepare(HttpRequest request, EntityDetails details, HttpContext context) {
+                        return new BasicRequestConsumer<Void>(new DiscardingEntityConsumer<Void>());
+                    }
+
+                    public void handle(Message<HttpRequest, Void> message, ResponseTrigger trigger, HttpContext context) throws HttpException, IOException {
+                        String path = message.getHead().getPath();
+                        int size = 1024;
+                        int query = path.indexOf("size=");
+                        if (query >= 0) {
+                            size = Integer.parseInt(path.substring(query + 5));
+                        }
+                        trigger.submitResponse(AsyncResponseBuilder.create(200)
+                                .setEntity(StubServer.json(size), ContentType.APPLICATION_JSON)
+                                .build(), context);
+                    }
+                })
+                .create();
+        server.start();
+        ListenerEndpoint endpoint = server.listen(new InetSocketAddress("localhost", 0), URIScheme.HTTP).get();
+        port = ((InetSocketAddress) endpoint.getAddress()).getPort();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /** Returns the number of connections opened to the server so far. */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    public void stop() {
+        server.close(CloseMode.IMMEDIATE);
+    }
+}
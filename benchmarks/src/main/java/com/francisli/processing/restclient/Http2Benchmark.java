@@ -0,0 +1,120 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the HTTP/1.1 engines with HTTP2 on rounds of concurrent requests to
+ * one host. The score is the time for a whole round to complete, and the
+ * handshakes counter is the number of connections each iteration opens to the
+ * server, starting from a new client, which for HTTP/1.1 grows with the
+ * concurrency while HTTP2 opens only one.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Http2Benchmark {
+    @Param({"THREAD_POOL", "ASYNC", "HTTP2"})
+    public String engine;
+
+    @Param({"100"})
+    public int concurrency;
+
+    @Param({"1024"})
+    public int size;
+
+    H2StubServer server;
+    RESTClient client;
+    String path;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Connections {
+        public int handshakes;
+        int opened;
+
+        @Setup(Level.Iteration)
+        public void reset(Http2Benchmark benchmark) {
+            handshakes = 0;
+            opened = benchmark.server.getConnectionCount();
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        server = new H2StubServer("HTTP2".equals(engine) ? HttpVersionPolicy.FORCE_HTTP_2 : HttpVersionPolicy.FORCE_HTTP_1);
+        path = "/bytes?size=" + size;
+    }
+
+    /** Starts each iteration with a new client, so it opens its connections again. */
+    @Setup(Level.Iteration)
+    public void connect() {
+        int engine = "HTTP2".equals(this.engine) ? RESTClient.HTTP2
+                : "ASYNC".equals(this.engine) ? RESTClient.ASYNC
+                : RESTClient.THREAD_POOL;
+        client = new RESTClient(new BenchmarkSketch(), "localhost", server.getPort(), 443, engine);
+        //// give HTTP/1.1 a connection per request in flight, as it needs for full concurrency
+        client.setMaxConnections(concurrency);
+        client.setMaxConnectionsPerRoute(concurrency);
+        if (engine == RESTClient.THREAD_POOL) {
+            client.setThreadPool(concurrency, 1000, RESTClient.BLOCK);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void disconnect() {
+        client.dispose();
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public int requests(Connections connections) throws Exception {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            futures[i] = client.GETAsync(path);
+        }
+        CompletableFuture.allOf(futures).get();
+        int opened = server.getConnectionCount();
+        connections.handshakes += opened - connections.opened;
+        connections.opened = opened;
+        return futures.length;
+    }
+}
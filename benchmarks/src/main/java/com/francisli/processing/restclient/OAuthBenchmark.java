@@ -0,0 +1,80 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import java.util.concurrent.TimeUnit;
+
+import oauth.signpost.commonshttp.CommonsHttpOAuthConsumer;
+import org.apache.http.client.methods.HttpGet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares signing a request for OAuth with a new Signpost consumer per
+ * request, as the client used to, against the client's cached signer. Run
+ * with -t to see how each holds up across threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OAuthBenchmark {
+    static final String URL = "http://localhost/search?q=processing&count=100";
+
+    RESTClient client;
+
+    @Setup
+    public void setup() {
+        client = new RESTClient(new BenchmarkSketch(), "localhost", 80);
+        client.useOAuth = true;
+        client.oauthConsumerKey = "consumer key";
+        client.oauthConsumerSecret = "consumer secret";
+        client.oauthAccessToken = "access token";
+        client.oauthAccessTokenSecret = "access token secret";
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.dispose();
+    }
+
+    @Benchmark
+    public HttpGet consumerPerRequest() throws Exception {
+        HttpGet request = new HttpGet(URL);
+        CommonsHttpOAuthConsumer consumer = new CommonsHttpOAuthConsumer(client.oauthConsumerKey, client.oauthConsumerSecret);
+        consumer.setTokenWithSecret(client.oauthAccessToken, client.oauthAccessTokenSecret);
+        consumer.sign(request);
+        return request;
+    }
+
+    @Benchmark
+    public HttpGet cachedSigner() throws Exception {
+        HttpGet request = new HttpGet(URL);
+        client.getOAuthSigner().sign(request);
+        return request;
+    }
+}
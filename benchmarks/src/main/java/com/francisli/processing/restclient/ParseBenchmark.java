@@ -0,0 +1,82 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import processing.data.JSONObject;
+import processing.data.XML;
+
+/**
+ * Measures reading and parsing response content of various sizes, from a
+ * response already in memory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    byte[] json;
+    byte[] xml;
+
+    @Setup
+    public void setup() {
+        json = StubServer.json(size);
+        xml = StubServer.xml(size);
+    }
+
+    static HttpResponse newResponse(byte[] body, ContentType contentType) throws IOException {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new ByteArrayEntity(body, contentType));
+        return new HttpResponse(response);
+    }
+
+    @Benchmark
+    public String string() throws IOException {
+        return newResponse(json, ContentType.APPLICATION_JSON).getContentAsString();
+    }
+
+    @Benchmark
+    public JSONObject jsonObject() throws IOException {
+        return newResponse(json, ContentType.APPLICATION_JSON).getContentAsJSONObject();
+    }
+
+    @Benchmark
+    public XML xml() throws IOException {
+        return newResponse(xml, ContentType.APPLICATION_XML).getContentAsXML();
+    }
+}
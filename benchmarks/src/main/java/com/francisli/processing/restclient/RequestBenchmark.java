@@ -0,0 +1,129 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of constructing each kind of request, which is what the
+ * animation thread pays, and of building it, which the worker pays before
+ * sending. dispatchPOST measures a whole POST() call against the stub server.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestBenchmark {
+    StubServer server;
+    RESTClient client;
+    HashMap<String, String> params;
+    HashMap<String, Object> files;
+
+    @Setup
+    public void setup() throws IOException {
+        server = new StubServer();
+        client = new RESTClient(new BenchmarkSketch(), "localhost", server.getPort());
+        params = new HashMap<String, String>();
+        for (int i = 0; i < 8; i++) {
+            params.put("param" + i, "value " + i + " & more");
+        }
+        files = new HashMap<String, Object>();
+        files.put("file", new byte[16384]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.dispose();
+        server.stop();
+    }
+
+    @Benchmark
+    public HttpRequest constructGET() {
+        return new GetRequest(client, "/items", params);
+    }
+
+    @Benchmark
+    public HttpRequest constructPOST() {
+        return new PostRequest(client, "/items", params);
+    }
+
+    @Benchmark
+    public HttpRequest constructMultipartPOST() {
+        return new PostRequest(client, "/items", params, files);
+    }
+
+    @Benchmark
+    public HttpRequest constructPUT() {
+        return new PutRequest(client, "/items/1", params);
+    }
+
+    @Benchmark
+    public HttpRequest constructPATCH() {
+        return new PatchRequest(client, "/items/1", params);
+    }
+
+    @Benchmark
+    public HttpRequest constructDELETE() {
+        return new DeleteRequest(client, "/items/1", params);
+    }
+
+    @Benchmark
+    public HttpRequest buildGET() throws IOException {
+        HttpRequest request = new GetRequest(client, "/items", params);
+        request.ensureBuilt();
+        return request;
+    }
+
+    @Benchmark
+    public HttpRequest buildPOST() throws IOException {
+        HttpRequest request = new PostRequest(client, "/items", params);
+        request.ensureBuilt();
+        return request;
+    }
+
+    @Benchmark
+    public HttpRequest buildMultipartPOST() throws IOException {
+        HttpRequest request = new PostRequest(client, "/items", params, files);
+        request.ensureBuilt();
+        return request;
+    }
+
+    /** The time a sketch spends in POST() and delivering the responses that
+     * have arrived, as it would each frame. */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public HttpRequest dispatchPOST() throws Throwable {
+        HttpRequest request = client.POST("/echo", params);
+        client.pre();
+        return request;
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local HTTP server for the benchmarks, so they measure the client rather
+ * than the network. GET /bytes?size=N returns a JSON document of about N
+ * bytes, GET /xml?size=N an XML document, and POST /echo reads the request
+ * body and returns "ok".
+ */
+public class StubServer {
+    static {
+        //// the server writes headers and body separately, so avoid Nagle delays on loopback
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    static final ConcurrentHashMap<Integer, byte[]> jsonPayloads = new ConcurrentHashMap<Integer, byte[]>();
+    static final ConcurrentHashMap<Integer, byte[]> xmlPayloads = new ConcurrentHashMap<Integer, byte[]>();
+
+    HttpServer server;
+    ExecutorService executor;
+
+    public StubServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+        server.createContext("/bytes", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, "application/json", json(size(exchange)));
+            }
+        });
+        server.createContext("/xml", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, "application/xml", xml(size(exchange)));
+            }
+        });
+        server.createContext("/echo", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[8192];
+                while (in.read(buffer) >= 0) {
+                }
+                respond(exchange, "text/plain", "ok".getBytes("UTF-8"));
+            }
+        });
+        executor = Executors.newFixedThreadPool(Math.max(16, Runtime.getRuntime().availableProcessors() * 2));
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    static int size(HttpExchange exchange) {
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null && query.startsWith("size=")) {
+            return Integer.parseInt(query.substring(5));
+        }
+        return 1024;
+    }
+
+    static void respond(HttpExchange exchange, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    /** Returns a JSON object holding an array of records, about size bytes long. */
+    static byte[] json(int size) {
+        byte[] payload = jsonPayloads.get(size);
+        if (payload == null) {
+            StringBuilder json = new StringBuilder("{\"items\":[");
+            for (int i = 0; json.length() < size - 2; i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append("{\"id\":").append(i).append(",\"name\":\"item ").append(i).append("\",\"value\":").append(i * 0.5).append('}');
+            }
+            json.append("]}");
+            payload = utf8(json.toString());
+            jsonPayloads.put(size, payload);
+        }
+        return payload;
+    }
+
+    /** Returns an XML document holding a list of records, about size bytes long. */
+    static byte[] xml(int size) {
+        byte[] payload = xmlPayloads.get(size);
+        if (payload == null) {
+            StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><items>");
+            for (int i = 0; xml.length() < size - 8; i++) {
+                xml.append("<item id=\"").append(i).append("\" name=\"item ").append(i).append("\">").append(i * 0.5).append("</item>");
+            }
+            xml.append("</items>");
+            payload = utf8(xml.toString());
+            xmlPayloads.put(size, payload);
+        }
+        return payload;
+    }
+
+    static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures end to end requests against the stub server. Each invocation of
+ * throughput performs a round of concurrency requests at once, so requests
+ * per second are the score times concurrency; latency performs one request
+ * at a time. routeLimit is the client's maximum connections per route, to
+ * show how throughput scales with the connection pool.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ThroughputBenchmark {
+    @Param({"THREAD_POOL", "ASYNC"})
+    public String engine;
+
+    @Param({"1", "8", "64"})
+    public int concurrency;
+
+    @Param({"2", "8", "64"})
+    public int routeLimit;
+
+    @Param({"1024"})
+    public int size;
+
+    StubServer server;
+    RESTClient client;
+    String path;
+
+    @Setup
+    public void setup() throws IOException {
+        server = new StubServer();
+        int engine = "ASYNC".equals(this.engine) ? RESTClient.ASYNC
+                : "VIRTUAL_THREADS".equals(this.engine) ? RESTClient.VIRTUAL_THREADS
+                : RESTClient.THREAD_POOL;
+        client = new RESTClient(new BenchmarkSketch(), "localhost", server.getPort(), 443, engine);
+        client.setMaxConnections(Math.max(routeLimit, 20));
+        client.setMaxConnectionsPerRoute(routeLimit);
+        if (engine == RESTClient.THREAD_POOL) {
+            client.setThreadPool(concurrency, 1000, RESTClient.BLOCK);
+        }
+        path = "/bytes?size=" + size;
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.dispose();
+        server.stop();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int throughput() throws Exception {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            futures[i] = client.GETAsync(path);
+        }
+        CompletableFuture.allOf(futures).get();
+        return futures.length;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public HttpResponse latency() throws Exception {
+        return client.GETAsync(path).get();
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * An Engine that multiplexes all requests over a small number of
+ * non-blocking I/O threads using the Apache HttpAsyncClient. Responses are
+ * buffered in memory as they arrive, then decoded and passed to the
+ * background() hook on a response thread, keeping the I/O threads free.
+ */
+class AsyncEngine extends Engine {
+    RESTClient client;
+    PoolingNHttpClientConnectionManager connectionManager;
+    CloseableHttpAsyncClient httpClient;
+
+    AsyncEngine(RESTClient client) throws IOReactorException {
+        this.client = client;
+        IOReactorConfig config = IOReactorConfig.custom()
+                .setIoThreadCount(Math.min(2, Runtime.getRuntime().availableProcessors()))
+                .build();
+        connectionManager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(config, new RESTClient.WorkerThreadFactory("RESTClient-io-")));
+        httpClient = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(client.keepAliveStrategy)
+                .addInterceptorFirst(client.defaultHeadersInterceptor)
+                .addInterceptorFirst(client.contentEncodingInterceptor)
+                .build();
+        httpClient.start();
+    }
+
+    void execute(final HttpRequest request) {
+        if (buildLater(request)) {
+            return;
+        }
+        try {
+            request.configure();
+        } catch (Exception e) {
+            request.failed(e);
+            return;
+        }
+        request.log();
+        request.started();
+        client.activeCount.incrementAndGet();
+        request.execution = httpClient.execute(request.host, request.request, new FutureCallback<org.apache.http.HttpResponse>() {
+            public void completed(org.apache.http.HttpResponse response) {
+                request.firstByteNanos = System.nanoTime();
+                client.activeCount.decrementAndGet();
+                //// decompressing and copying the content would stall every connection on this I/O thread
+                completeLater(request, response);
+            }
+
+            public void failed(Exception e) {
+                client.activeCount.decrementAndGet();
+                request.failed(e);
+            }
+
+            public void cancelled() {
+                client.activeCount.decrementAndGet();
+                request.failed(new CancellationException());
+            }
+        });
+        if (request.cancelled) {
+            request.execution.cancel(true);
+        }
+    }
+
+    int getQueuedRequestCount() {
+        return connectionManager.getTotalStats().getPending();
+    }
+
+    PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    void setMaxConnectionsPerRoute(int max) {
+        connectionManager.setDefaultMaxPerRoute(max);
+        connectionManager.setMaxPerRoute(new HttpRoute(client.host), max);
+        connectionManager.setMaxPerRoute(new HttpRoute(client.secureHost, null, true), max);
+    }
+
+    void setMaxConnections(int max) {
+        connectionManager.setMaxTotal(max);
+    }
+
+    void closeIdleConnections(long millis) {
+        connectionManager.closeExpiredConnections();
+        if (millis > 0) {
+            connectionManager.closeIdleConnections(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void close() {
+        try {
+            httpClient.close();
+        } catch (IOException ioe) { }
+        closeResponsePool();
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.client.cache.HttpCacheEntry;
+import org.apache.http.client.cache.HttpCacheStorage;
+import org.apache.http.client.cache.HttpCacheUpdateCallback;
+import org.apache.http.client.cache.InputLimit;
+import org.apache.http.client.cache.Resource;
+import org.apache.http.client.cache.ResourceFactory;
+import org.apache.http.impl.client.cache.FileResource;
+
+/**
+ * Stores cached responses for a RESTClient, evicting the least recently used
+ * entries once the total size of their content exceeds a limit. The content
+ * itself lives wherever the cache's ResourceFactory put it, in memory or in
+ * files on disk. The index of entries is only kept in memory, so the files
+ * of a disk cache are deleted when the client is disposed of.
+ */
+class CacheStorage implements HttpCacheStorage {
+    LinkedHashMap<String, HttpCacheEntry> entries = new LinkedHashMap<String, HttpCacheEntry>(16, 0.75f, true);
+    long maxBytes;
+    long bytes;
+
+    CacheStorage(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized void putEntry(String key, HttpCacheEntry entry) {
+        remove(entries.put(key, entry), entry);
+        bytes += size(entry);
+        Iterator<Map.Entry<String, HttpCacheEntry>> iterator = entries.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            HttpCacheEntry eldest = iterator.next().getValue();
+            if (eldest == entry) {
+                continue;
+            }
+            iterator.remove();
+            remove(eldest, null);
+        }
+    }
+
+    public synchronized HttpCacheEntry getEntry(String key) {
+        return entries.get(key);
+    }
+
+    public synchronized void removeEntry(String key) {
+        remove(entries.remove(key), null);
+    }
+
+    public synchronized void updateEntry(String key, HttpCacheUpdateCallback callback) throws java.io.IOException {
+        putEntry(key, callback.update(entries.get(key)));
+    }
+
+    synchronized long getSize() {
+        return bytes;
+    }
+
+    /** Removes every entry, deleting the files of a disk cache. */
+    synchronized void clear() {
+        for (HttpCacheEntry entry: entries.values()) {
+            remove(entry, null);
+        }
+        entries.clear();
+    }
+
+    void remove(HttpCacheEntry entry, HttpCacheEntry replacement) {
+        if (entry == null) {
+            return;
+        }
+        bytes -= size(entry);
+        Resource resource = entry.getResource();
+        //// a revalidated entry keeps the resource of the entry it replaces
+        if (resource != null && (replacement == null || replacement.getResource() != resource)) {
+            resource.dispose();
+        }
+    }
+
+    static long size(HttpCacheEntry entry) {
+        Resource resource = entry.getResource();
+        return resource != null ? resource.length() : 0;
+    }
+
+    /**
+     * Stores cached response bodies in files with a name of their own, so
+     * files left behind by a run that didn't dispose of its client can be
+     * told apart from anything else in the folder and deleted.
+     */
+    static class FileFactory implements ResourceFactory {
+        static final String PREFIX = "restclient-";
+        static final String SUFFIX = ".cache";
+
+        File directory;
+
+        FileFactory(File directory) {
+            this.directory = directory;
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file: files) {
+                    if (file.getName().startsWith(PREFIX) && file.getName().endsWith(SUFFIX)) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+
+        public Resource generate(String requestId, InputStream in, InputLimit limit) throws IOException {
+            File file = File.createTempFile(PREFIX, SUFFIX, directory);
+            OutputStream out = new FileOutputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                long total = 0;
+                int count;
+                while ((count = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, count);
+                    total += count;
+                    if (limit != null && total > limit.getValue()) {
+                        limit.reached();
+                        break;
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            return new FileResource(file);
+        }
+
+        public Resource copy(String requestId, Resource resource) throws IOException {
+            InputStream in = resource.getInputStream();
+            try {
+                return generate(requestId, in, null);
+            } finally {
+                in.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * ClientStats collects measurements of everything a RESTClient does: latency
+ * histograms, bytes and status codes for each host and HTTP method, errors
+ * and retries, time spent waiting in the request queue, and the state of the
+ * connection pool. The measurements are live and keep changing as requests
+ * are made; read them from your sketch, or export them all as plain text
+ * with toText().
+ *
+ * @author Francis Li
+ * @usage Application
+ * @param stats ClientStats: any variable of type ClientStats
+ */
+public class ClientStats {
+    static final String[] METHODS = { "GET", "POST", "PUT", "PATCH", "DELETE" };
+    static final float[] QUANTILES = { 50, 90, 99, 99.9f };
+
+    RESTClient client;
+    ConcurrentHashMap<HttpHost, RequestStats[]> hosts = new ConcurrentHashMap<HttpHost, RequestStats[]>();
+    AtomicLong errors = new AtomicLong();
+
+    /** LatencyHistogram: time requests spent waiting for a worker thread or the rate limiter */
+    public final LatencyHistogram queueWait = new LatencyHistogram();
+
+    ClientStats(RESTClient client) {
+        this.client = client;
+    }
+
+    RequestStats get(HttpHost host, String method) {
+        RequestStats[] stats = hosts.get(host);
+        if (stats == null) {
+            stats = new RequestStats[METHODS.length + 1];
+            RequestStats[] previous = hosts.putIfAbsent(host, stats);
+            if (previous != null) {
+                stats = previous;
+            }
+        }
+        int index = METHODS.length;
+        for (int i = 0; i < METHODS.length; i++) {
+            if (METHODS[i].equals(method)) {
+                index = i;
+                break;
+            }
+        }
+        if (stats[index] == null) {
+            synchronized (stats) {
+                if (stats[index] == null) {
+                    stats[index] = new RequestStats(host.toHostString(), index < METHODS.length ? method : "OTHER");
+                }
+            }
+        }
+        return stats[index];
+    }
+
+    /** Records an attempt that received a response, once its content has been read if it is buffered. */
+    void recordResponse(HttpRequest request, org.apache.http.HttpResponse response, long bytesReceived) {
+        long now = System.nanoTime();
+        RequestStats stats = get(request.host, request.request.getRequestLine().getMethod());
+        stats.requests.incrementAndGet();
+        int status = response.getStatusLine().getStatusCode();
+        if (status >= 0 && status < stats.statusCounts.length()) {
+            stats.statusCounts.incrementAndGet(status);
+        }
+        if (request.connectNanos >= 0) {
+            stats.connect.record(request.connectNanos);
+        }
+        stats.firstByte.record(request.firstByteNanos - request.startedNanos);
+        stats.total.record(now - request.startedNanos);
+        stats.bytesSent.addAndGet(getBytesSent(request));
+        stats.bytesReceived.addAndGet(Math.max(0, bytesReceived));
+    }
+
+    /** Records an attempt that failed without a response. */
+    void recordError(HttpRequest request) {
+        errors.incrementAndGet();
+        get(request.host, request.request.getRequestLine().getMethod()).errors.incrementAndGet();
+    }
+
+    void recordRetry(HttpRequest request) {
+        get(request.host, request.request.getRequestLine().getMethod()).retries.incrementAndGet();
+    }
+
+    static long getBytesSent(HttpRequest request) {
+        if (request.request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request.request).getEntity();
+            if (entity != null) {
+                return Math.max(0, entity.getContentLength());
+            }
+        }
+        return 0;
+    }
+
+    /** Returns the measurements for each host and HTTP method used so far.
+     *
+     * @return RequestStats[]
+     */
+    public RequestStats[] getRequestStats() {
+        ArrayList<RequestStats> list = new ArrayList<RequestStats>();
+        for (RequestStats[] stats: hosts.values()) {
+            for (RequestStats methodStats: stats) {
+                if (methodStats != null) {
+                    list.add(methodStats);
+                }
+            }
+        }
+        return list.toArray(new RequestStats[list.size()]);
+    }
+
+    /** Returns the total number of attempts that failed without a response.
+     *
+     * @return long
+     */
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /** Returns the total number of retries.
+     *
+     * @return long
+     */
+    public long getRetryCount() {
+        return client.retryCount.get();
+    }
+
+    /** Returns the number of requests waiting to be sent, in the request
+     * queue or in the rate limiter.
+     *
+     * @return int
+     */
+    public int getQueuedRequestCount() {
+        return client.getQueuedRequestCount() + client.getRateLimitQueueLength();
+    }
+
+    /** Returns the number of requests being performed.
+     *
+     * @return int
+     */
+    public int getActiveRequestCount() {
+        return client.getActiveRequestCount();
+    }
+
+    /** Returns the number of pooled connections in use by requests.
+     *
+     * @return int
+     */
+    public int getLeasedConnections() {
+        return getPoolStats().getLeased();
+    }
+
+    /** Returns the number of idle pooled connections available for reuse.
+     *
+     * @return int
+     */
+    public int getAvailableConnections() {
+        return getPoolStats().getAvailable();
+    }
+
+    /** Returns the number of requests waiting for a pooled connection.
+     *
+     * @return int
+     */
+    public int getPendingConnections() {
+        return getPoolStats().getPending();
+    }
+
+    PoolStats getPoolStats() {
+        PoolStats stats = client.connectionManager.getTotalStats();
+        if (client.engine != null) {
+            PoolStats engineStats = client.engine.getPoolStats();
+            stats = new PoolStats(stats.getLeased() + engineStats.getLeased(),
+                    stats.getPending() + engineStats.getPending(),
+                    stats.getAvailable() + engineStats.getAvailable(),
+                    stats.getMax() + engineStats.getMax());
+        }
+        return stats;
+    }
+
+    /** Returns all of the measurements as plain text, one value per line, in
+     * the format read by Prometheus and similar monitoring tools.
+     *
+     * @return String
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        for (RequestStats stats: getRequestStats()) {
+            String labels = "host=\"" + stats.host + "\",method=\"" + stats.method + "\"";
+            line(text, "restclient_responses_total", labels, stats.getResponseCount());
+            for (int code = 0; code < stats.statusCounts.length(); code++) {
+                long count = stats.statusCounts.get(code);
+                if (count > 0) {
+                    line(text, "restclient_status_total", labels + ",code=\"" + code + "\"", count);
+                }
+            }
+            line(text, "restclient_errors_total", labels, stats.getErrorCount());
+            line(text, "restclient_retries_total", labels, stats.getRetryCount());
+            line(text, "restclient_bytes_sent_total", labels, stats.getBytesSent());
+            line(text, "restclient_bytes_received_total", labels, stats.getBytesReceived());
+            histogram(text, "restclient_connect_ms", labels, stats.connect);
+            histogram(text, "restclient_first_byte_ms", labels, stats.firstByte);
+            histogram(text, "restclient_total_ms", labels, stats.total);
+        }
+        histogram(text, "restclient_queue_wait_ms", "", queueWait);
+        line(text, "restclient_queued_requests", "", getQueuedRequestCount());
+        line(text, "restclient_active_requests", "", getActiveRequestCount());
+        PoolStats pool = getPoolStats();
+        line(text, "restclient_pool_connections", "state=\"leased\"", pool.getLeased());
+        line(text, "restclient_pool_connections", "state=\"available\"", pool.getAvailable());
+        line(text, "restclient_pool_connections", "state=\"pending\"", pool.getPending());
+        line(text, "restclient_pool_max_connections", "", pool.getMax());
+        if (client.cacheStorage != null) {
+            line(text, "restclient_cache_total", "result=\"hit\"", client.getCacheHits());
+            line(text, "restclient_cache_total", "result=\"miss\"", client.getCacheMisses());
+            line(text, "restclient_cache_total", "result=\"revalidated\"", client.getCacheRevalidations());
+        }
+        return text.toString();
+    }
+
+    static void histogram(StringBuilder text, String name, String labels, LatencyHistogram histogram) {
+        String separator = labels.isEmpty() ? "" : ",";
+        for (float quantile: QUANTILES) {
+            line(text, name, labels + separator + "quantile=\"" + quantile / 100 + "\"", histogram.getPercentile(quantile));
+        }
+        line(text, name + "_count", labels, histogram.getCount());
+        line(text, name + "_max", labels, histogram.getMax());
+    }
+
+    static void line(StringBuilder text, String name, String labels, Object value) {
+        text.append(name);
+        if (!labels.isEmpty()) {
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ').append(value instanceof Float ? String.format(Locale.ROOT, "%.3f", value) : value).append('\n');
+    }
+
+    public String toString() {
+        return toText();
+    }
+}
@@ -21,8 +21,8 @@ import org.apache.http.client.methods.HttpDelete;
 
 /**
  * <p>An HttpRequest object represents a single HTTP request to a server.  Each
- * request is dispatched in its own background thread and is passed along with
- * its response in the responseReceived() callback.</p>
+ * request is dispatched to a background worker thread owned by its RESTClient
+ * and is passed along with its response in the responseReceived() callback.</p>
  *
  * @author Francis Li
  * @usage Application
@@ -0,0 +1,100 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.pool.PoolStats;
+
+/**
+ * An Engine performs requests for a RESTClient in place of its default pool
+ * of blocking worker threads.
+ */
+abstract class Engine {
+    ThreadPoolExecutor responsePool;
+
+    abstract void execute(HttpRequest request);
+
+    abstract int getQueuedRequestCount();
+
+    abstract PoolStats getPoolStats();
+
+    abstract void setMaxConnectionsPerRoute(int max);
+
+    abstract void setMaxConnections(int max);
+
+    abstract void closeIdleConnections(long millis);
+
+    abstract void close();
+
+    /** Builds the request on one of the client's worker threads and then
+     * executes it, for engines whose execute() runs on the thread that
+     * dispatched the request. Returns false if there is nothing to build. */
+    boolean buildLater(HttpRequest request) {
+        if (request.built || !request.needsBuild()) {
+            return false;
+        }
+        request.client.executor.execute(new BuildTask(request));
+        return true;
+    }
+
+    /** Builds a request, then executes it on the engine. */
+    class BuildTask implements Runnable {
+        HttpRequest request;
+
+        BuildTask(HttpRequest request) {
+            this.request = request;
+        }
+
+        public void run() {
+            try {
+                request.ensureBuilt();
+            } catch (Exception e) {
+                request.failed(e);
+                return;
+            }
+            execute(request);
+        }
+    }
+
+    /** Reads the response and delivers it on a response thread, for engines
+     * whose callbacks run on an I/O thread that should only move bytes. The
+     * queue is unbounded, since the connection limits already bound it. */
+    void completeLater(final HttpRequest request, final org.apache.http.HttpResponse response) {
+        synchronized (this) {
+            if (responsePool == null) {
+                int threads = Runtime.getRuntime().availableProcessors();
+                responsePool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new RESTClient.WorkerThreadFactory("RESTClient-response-"),
+                        new ThreadPoolExecutor.DiscardPolicy());
+                responsePool.allowCoreThreadTimeOut(true);
+            }
+        }
+        responsePool.execute(new Runnable() {
+            public void run() {
+                request.completed(response);
+            }
+        });
+    }
+
+    synchronized void closeResponsePool() {
+        if (responsePool != null) {
+            responsePool.shutdownNow();
+        }
+    }
+}
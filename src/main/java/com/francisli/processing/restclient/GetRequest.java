@@ -15,21 +15,22 @@
  */
 package com.francisli.processing.restclient;
 
+import java.net.URI;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.apache.http.Consts;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URIUtils;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.apache.http.message.BasicNameValuePair;
 
-import oauth.signpost.OAuthConsumer;
-import oauth.signpost.commonshttp.CommonsHttpOAuthConsumer;
-
 /**
  * <p>An HttpRequest object represents a single HTTP request to a server.  Each
- * request is dispatched in its own background thread and is passed along with
- * its response in the responseReceived() callback.</p>
+ * request is dispatched to a background worker thread owned by its RESTClient
+ * and is passed along with its response in the responseReceived() callback.</p>
  *
  * @author Francis Li
  * @usage Application
@@ -46,9 +47,27 @@ public class GetRequest extends HttpRequest {
       this.host = client.getHost();
       //// clean up path a little bit- remove whitespace, add slash prefix
       path = path.trim();
-      if (!path.startsWith("/")) {
-          path = "/" + path;
+      String uri;
+      if (path.startsWith("http://") || path.startsWith("https://")) {
+          //// an absolute URL, such as a Link header, names its own host
+          this.host = URIUtils.extractHost(URI.create(path));
+          uri = path;
+      } else {
+          if (!path.startsWith("/")) {
+              path = "/" + path;
+          }
+          uri = host.toURI() + path;
+      }
+      //// keep a copy of the params, the query string is formatted on the worker
+      if (params != null) {
+          this.params = new LinkedHashMap<Object, Object>((Map<?, ?>) params);
       }
+      this.request = newRequest(uri);
+    }
+
+    Map<Object, Object> params;
+
+    void build() {
       //// if params passed, format into a query string and append
       if (params != null) {
           ArrayList<BasicNameValuePair> pairs = new ArrayList<BasicNameValuePair>();
@@ -57,25 +76,20 @@ public class GetRequest extends HttpRequest {
               pairs.add(new BasicNameValuePair(key.toString(), value.toString()));
           }
           String queryString = URLEncodedUtils.format(pairs, Consts.UTF_8);
-          if (path.contains("?")) {
-              path = path + "&" + queryString;
+          HttpRequestBase base = (HttpRequestBase) request;
+          String uri = base.getURI().toString();
+          if (uri.contains("?")) {
+              base.setURI(URI.create(uri + "&" + queryString));
           } else {
-              path = path + "?" + queryString;
-          }
-      }
-      //// finally, invoke request
-      this.request = newRequest(host.toURI() + path);
-      if (client.useOAuth) {
-          OAuthConsumer consumer = new CommonsHttpOAuthConsumer(client.oauthConsumerKey, client.oauthConsumerSecret);
-          consumer.setTokenWithSecret(client.oauthAccessToken, client.oauthAccessTokenSecret);
-          try {
-              consumer.sign(request);
-          } catch (Exception e) {
-              System.err.println("HttpClient: Unable to sign GET request for OAuth");
+              base.setURI(URI.create(uri + "?" + queryString));
           }
       }
     }
 
+    boolean needsBuild() {
+      return params != null || super.needsBuild();
+    }
+
     org.apache.http.HttpRequest newRequest(String uri) {
       return new HttpGet(uri);
     }
@@ -0,0 +1,460 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleResponseConsumer;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.H2AsyncClientBuilder;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.function.Resolver;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.DataStreamChannel;
+import org.apache.hc.core5.http.nio.entity.BasicAsyncEntityProducer;
+import org.apache.hc.core5.http.nio.support.BasicRequestProducer;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.methods.HttpRequestWrapper;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * An Engine that performs requests over HTTP/2 using the Apache HttpClient 5
+ * HTTP/2 client, multiplexing every request to a host as a stream on a single
+ * connection. Secure connections negotiate h2 with ALPN and plain connections
+ * use h2c with prior knowledge, so the server must support HTTP/2. Large or
+ * streaming request bodies are written by the engine's own writer threads,
+ * outside the client's request queue and its rejection policy, and sent as
+ * the stream has room for them, while response bodies are buffered in memory
+ * and then decoded on a response thread, keeping the I/O threads free.
+ * Requests beyond the client's maximum number of connections wait for a
+ * stream to finish, so that limit caps the streams in flight.
+ */
+class Http2Engine extends Engine {
+    static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+    //// bodies up to this size are copied into memory rather than streamed
+    static final int STREAM_THRESHOLD = 65536;
+
+    RESTClient client;
+    CloseableHttpAsyncClient httpClient;
+    ArrayDeque<HttpRequest> waiting = new ArrayDeque<HttpRequest>();
+    int activeStreams;
+    int maxStreams = Integer.MAX_VALUE;
+    //// at most one writer per stream in flight, so the streams already bound it
+    ThreadPoolExecutor writerPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new RESTClient.WorkerThreadFactory("RESTClient-h2-body-"));
+
+    Http2Engine(RESTClient client) {
+        this.client = client;
+        IOReactorConfig config = IOReactorConfig.custom()
+                .setIoThreadCount(Math.min(2, Runtime.getRuntime().availableProcessors()))
+                .build();
+        httpClient = H2AsyncClientBuilder.create()
+                .setIOReactorConfig(config)
+                .setThreadFactory(new RESTClient.WorkerThreadFactory("RESTClient-h2-"))
+                .setH2Config(H2Config.custom().setPushEnabled(false).build())
+                .setConnectionConfigResolver(new Resolver<HttpHost, ConnectionConfig>() {
+                    public ConnectionConfig resolve(HttpHost host) {
+                        //// read when each connection opens, so later changes to connectTimeout apply
+                        return ConnectionConfig.custom()
+                                .setConnectTimeout(client.connectTimeout, TimeUnit.MILLISECONDS)
+                                .build();
+                    }
+                })
+                //// RESTClient retries failed requests itself
+                .disableAutomaticRetries()
+                .build();
+        httpClient.start();
+    }
+
+    void execute(HttpRequest request) {
+        if (buildLater(request)) {
+            return;
+        }
+        try {
+            request.configure();
+        } catch (Exception e) {
+            request.failed(e);
+            return;
+        }
+        request.log();
+        synchronized (this) {
+            if (activeStreams >= maxStreams) {
+                waiting.add(request);
+                return;
+            }
+            activeStreams++;
+        }
+        send(request);
+    }
+
+    /** Sends the request on a stream it already holds, handing the stream
+     * on to the next waiting request if this one can't use it. */
+    void send(HttpRequest request) {
+        while (request != null) {
+            if (request.cancelled) {
+                request = next();
+                continue;
+            }
+            final HttpRequest current = request;
+            final BasicRequestProducer producer;
+            try {
+                producer = newRequest(current);
+            } catch (Exception e) {
+                current.failed(e);
+                request = next();
+                continue;
+            }
+            current.started();
+            client.activeCount.incrementAndGet();
+            current.execution = httpClient.execute(producer, SimpleResponseConsumer.create(), new FutureCallback<SimpleHttpResponse>() {
+                public void completed(SimpleHttpResponse response) {
+                    current.firstByteNanos = System.nanoTime();
+                    done(producer);
+                    completeLater(current, newResponse(response));
+                }
+
+                public void failed(Exception e) {
+                    done(producer);
+                    current.failed(e);
+                }
+
+                public void cancelled() {
+                    done(producer);
+                    current.failed(new CancellationException());
+                }
+            });
+            if (current.cancelled) {
+                current.execution.cancel(true);
+            }
+            return;
+        }
+    }
+
+    /** Returns the next waiting request, or releases the stream if none. */
+    synchronized HttpRequest next() {
+        HttpRequest request = waiting.poll();
+        if (request == null) {
+            activeStreams--;
+        }
+        return request;
+    }
+
+    void done(BasicRequestProducer producer) {
+        //// stops the worker writing a streamed body that will no longer be sent
+        producer.releaseResources();
+        client.activeCount.decrementAndGet();
+        send(next());
+    }
+
+    /** Converts a request to an HttpClient 5 request, applying the client's
+     * default headers and compression settings as its HttpClient would. */
+    BasicRequestProducer newRequest(HttpRequest request) throws Exception {
+        HttpRequestWrapper wrapper = HttpRequestWrapper.wrap(request.request);
+        client.defaultHeadersInterceptor.process(wrapper, null);
+        client.contentEncodingInterceptor.process(wrapper, null);
+        URI uri = wrapper.getURI();
+        if (!uri.isAbsolute()) {
+            uri = URI.create(request.host.toURI() + uri);
+        }
+        SimpleHttpRequest h2Request = SimpleHttpRequest.create(wrapper.getMethod(), uri);
+        for (Header header: wrapper.getAllHeaders()) {
+            //// HTTP/2 does not allow connection-specific headers, and sets the rest itself
+            String name = header.getName().toLowerCase(Locale.ROOT);
+            if (!name.equals("host") && !name.equals("connection") && !name.equals("keep-alive")
+                    && !name.equals("proxy-connection") && !name.equals("transfer-encoding")
+                    && !name.equals("upgrade") && !name.equals("te") && !name.equals("content-length")
+                    && !name.equals("content-type")) {
+                h2Request.addHeader(header.getName(), header.getValue());
+            }
+        }
+        AsyncEntityProducer body = null;
+        HttpEntity entity = wrapper instanceof HttpEntityEnclosingRequest ? ((HttpEntityEnclosingRequest) wrapper).getEntity() : null;
+        if (entity != null) {
+            Header contentType = entity.getContentType();
+            if (contentType == null) {
+                contentType = wrapper.getFirstHeader("Content-Type");
+            }
+            if (entity.getContentEncoding() != null) {
+                h2Request.addHeader(entity.getContentEncoding().getName(), entity.getContentEncoding().getValue());
+            }
+            long length = entity.getContentLength();
+            if (length >= 0 && length <= STREAM_THRESHOLD) {
+                body = new BasicAsyncEntityProducer(EntityUtils.toByteArray(entity), contentType != null ? ContentType.parse(contentType.getValue()) : null);
+            } else {
+                body = new EntityProducer(entity, contentType != null ? contentType.getValue() : null, writerPool);
+            }
+        }
+        //// the connect timeout is the client's, since one connection serves every request to the host
+        int read = request.readTimeout >= 0 ? request.readTimeout : client.readTimeout;
+        if (read > 0) {
+            h2Request.setConfig(RequestConfig.custom()
+                    .setResponseTimeout(read, TimeUnit.MILLISECONDS)
+                    .build());
+        }
+        return new BasicRequestProducer(h2Request, body);
+    }
+
+    /** Converts an HttpClient 5 response to the HttpClient 4 response the
+     * rest of the library expects. */
+    static org.apache.http.HttpResponse newResponse(SimpleHttpResponse response) {
+        String reason = response.getReasonPhrase();
+        if (reason == null || reason.isEmpty()) {
+            //// HTTP/2 has no reason phrases, so use the standard ones
+            reason = EnglishReasonPhraseCatalog.INSTANCE.getReason(response.getCode(), null);
+        }
+        BasicHttpResponse converted = new BasicHttpResponse(HTTP_2, response.getCode(), reason);
+        for (org.apache.hc.core5.http.Header header: response.getHeaders()) {
+            converted.addHeader(header.getName(), header.getValue());
+        }
+        byte[] body = response.getBodyBytes();
+        if (body != null) {
+            ByteArrayEntity entity = new ByteArrayEntity(body);
+            entity.setContentType(converted.getFirstHeader("Content-Type"));
+            entity.setContentEncoding(converted.getFirstHeader("Content-Encoding"));
+            converted.setEntity(entity);
+        }
+        return converted;
+    }
+
+    synchronized int getQueuedRequestCount() {
+        return waiting.size();
+    }
+
+    synchronized PoolStats getPoolStats() {
+        //// every request to a host shares one connection, so count the streams on them instead
+        return new PoolStats(activeStreams, waiting.size(), Math.max(0, maxStreams - activeStreams), maxStreams);
+    }
+
+    void setMaxConnectionsPerRoute(int max) {
+        //// requests to a host always share one connection
+    }
+
+    void setMaxConnections(int max) {
+        synchronized (this) {
+            maxStreams = max;
+        }
+        //// start the waiting requests the new limit has room for
+        HttpRequest request;
+        while ((request = claim()) != null) {
+            send(request);
+        }
+    }
+
+    /** Takes a stream for the next waiting request, if there is room. */
+    synchronized HttpRequest claim() {
+        if (activeStreams >= maxStreams || waiting.isEmpty()) {
+            return null;
+        }
+        activeStreams++;
+        return waiting.poll();
+    }
+
+    void closeIdleConnections(long millis) {
+        //// the connections stay open to multiplex later requests, until the server closes them
+    }
+
+    void close() {
+        httpClient.close(CloseMode.GRACEFUL);
+        writerPool.shutdownNow();
+        closeResponsePool();
+    }
+
+    /**
+     * Streams an HttpClient 4 entity as the body of an HTTP/2 request. The
+     * entity writes its content on a writer thread, since writing may block,
+     * into a few chunks that the I/O thread sends as the stream has room for
+     * them, so only those chunks are held in memory at once.
+     */
+    static class EntityProducer implements AsyncEntityProducer {
+        static final ByteBuffer END = ByteBuffer.allocate(0);
+        static final int CHUNK_SIZE = 8192;
+
+        HttpEntity entity;
+        String contentType;
+        Executor executor;
+        ArrayBlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<ByteBuffer>(16);
+        volatile DataStreamChannel channel;
+        volatile IOException error;
+        volatile boolean closed;
+        boolean started;
+
+        EntityProducer(HttpEntity entity, String contentType, Executor executor) {
+            this.entity = entity;
+            this.contentType = contentType;
+            this.executor = executor;
+        }
+
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        public long getContentLength() {
+            return entity.getContentLength();
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getContentEncoding() {
+            return entity.getContentEncoding() != null ? entity.getContentEncoding().getValue() : null;
+        }
+
+        public boolean isChunked() {
+            return entity.getContentLength() < 0;
+        }
+
+        public Set<String> getTrailerNames() {
+            return null;
+        }
+
+        public int available() {
+            if (channel == null) {
+                //// ask for the channel that the writer wakes when it adds a chunk
+                return 1;
+            }
+            ByteBuffer chunk = chunks.peek();
+            return chunk == null ? 0 : Math.max(chunk.remaining(), 1);
+        }
+
+        public void produce(DataStreamChannel channel) throws IOException {
+            this.channel = channel;
+            if (!started) {
+                started = true;
+                executor.execute(new Runnable() {
+                    public void run() {
+                        write();
+                    }
+                });
+            }
+            ByteBuffer chunk;
+            while ((chunk = chunks.peek()) != null) {
+                if (chunk == END) {
+                    if (error != null) {
+                        throw error;
+                    }
+                    channel.endStream();
+                    return;
+                }
+                channel.write(chunk);
+                if (chunk.hasRemaining()) {
+                    //// the stream is full, and asks again once it has room
+                    return;
+                }
+                chunks.poll();
+            }
+        }
+
+        void write() {
+            ChunkOutputStream out = new ChunkOutputStream();
+            try {
+                entity.writeTo(out);
+                out.flush();
+            } catch (IOException e) {
+                error = e;
+            }
+            try {
+                add(END);
+            } catch (IOException e) { }
+        }
+
+        void add(ByteBuffer chunk) throws IOException {
+            try {
+                while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                    if (closed) {
+                        throw new IOException("RESTClient: Request stream closed");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            DataStreamChannel channel = this.channel;
+            if (channel != null) {
+                channel.requestOutput();
+            }
+        }
+
+        public void failed(Exception cause) {
+            releaseResources();
+        }
+
+        public void releaseResources() {
+            closed = true;
+            chunks.clear();
+        }
+
+        class ChunkOutputStream extends OutputStream {
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                if (closed) {
+                    throw new IOException("RESTClient: Request stream closed");
+                }
+                while (length > 0) {
+                    int count = Math.min(length, buffer.remaining());
+                    buffer.put(bytes, offset, count);
+                    offset += count;
+                    length -= count;
+                    if (!buffer.hasRemaining()) {
+                        flush();
+                    }
+                }
+            }
+
+            public void flush() throws IOException {
+                if (buffer.position() > 0) {
+                    buffer.flip();
+                    add(buffer);
+                    buffer = ByteBuffer.allocate(CHUNK_SIZE);
+                }
+            }
+        }
+    }
+}
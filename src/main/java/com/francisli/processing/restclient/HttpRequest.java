@@ -15,22 +15,57 @@
  */
 package com.francisli.processing.restclient;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+
 import org.apache.http.HttpHost;
+import org.apache.http.client.cache.HttpCacheContext;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.util.EntityUtils;
 import processing.core.PApplet;
 
 /**
  * <p>An HttpRequest object represents a single HTTP request to a server.  Each
- * request is dispatched in its own background thread and is passed along with
- * its response in the responseReceived() callback.</p>
+ * request is dispatched to a background worker thread owned by its RESTClient
+ * and is passed along with its response in the responseReceived() callback.</p>
  *
  * @author Francis Li
  * @usage Application
  * @param request HttpRequest: any variable of type HttpRequest
  */
-public class HttpRequest extends Thread {
+public class HttpRequest implements Runnable {
     RESTClient client;
     HttpHost host;
     org.apache.http.HttpRequest request;
+    Semaphore connectionPermit;
+    CompletableFuture<HttpResponse> future;
+    volatile HttpResponse response;
+    volatile ResponseListener listener;
+    String coalesceKey;
+    List<HttpRequest> followers;
+    RateLimiter rateLimiter;
+    int attempt = 1;
+    volatile Exception error;
+    int connectTimeout = -1;
+    int readTimeout = -1;
+    long requestTimeout = -1;
+    ScheduledFuture<?> timeoutTimer;
+    volatile Future<?> execution;
+    volatile boolean cancelled;
+    long queuedNanos;
+    long startedNanos;
+    long firstByteNanos;
+    long connectNanos = -1;
+    volatile boolean built;
 
     HttpRequest() {
     }
@@ -41,6 +76,156 @@ public class HttpRequest extends Thread {
         this.request = request;
     }
 
+    /**
+     * Dispatches this request to its RESTClient's worker threads. The
+     * RESTClient GET/POST/PUT/PATCH/DELETE methods call this for you; you only
+     * need it if you construct a request object yourself.
+     */
+    public void start() {
+        client.dispatch(this);
+    }
+
+    /**
+     * Routes the response to this request to the specified listener instead
+     * of the client's listener or the responseReceived() callback in your
+     * sketch. Set it right after starting the request, in the same frame.
+     *
+     * @param listener ResponseListener: the listener for this request
+     */
+    public void setResponseListener(ResponseListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets how long to wait for a connection to the server to be established,
+     * overriding the client's connectTimeout. Only takes effect if set before
+     * the request is sent, so construct the request yourself and start() it.
+     * Ignored by the HTTP2 engine, whose connection is shared by every request
+     * to the host.
+     *
+     * @param millis int: the timeout in milliseconds, or 0 to wait indefinitely
+     */
+    public void setConnectTimeout(int millis) {
+        connectTimeout = millis;
+    }
+
+    /**
+     * Sets how long to wait for data from the server, overriding the client's
+     * readTimeout. Only takes effect if set before the request is sent.
+     *
+     * @param millis int: the timeout in milliseconds, or 0 to wait indefinitely
+     */
+    public void setReadTimeout(int millis) {
+        readTimeout = millis;
+    }
+
+    /**
+     * Sets how long the whole request may take, including waiting for a
+     * connection and any retries, overriding the client's requestTimeout.
+     * Only takes effect if set before the request is started.
+     *
+     * @param millis long: the timeout in milliseconds, or 0 to wait indefinitely
+     */
+    public void setRequestTimeout(long millis) {
+        requestTimeout = millis;
+    }
+
+    /**
+     * Cancels the request, closing its connection if it has one. A cancelled
+     * request gets no callback, and its future, if any, is cancelled.
+     *
+     * @return boolean: false if the request had already completed
+     */
+    public boolean cancel() {
+        return abort(null);
+    }
+
+    /** Aborts the request, reporting the specified reason as its failure, or
+     * nothing if it was cancelled. */
+    boolean abort(Exception reason) {
+        if (!finish()) {
+            return false;
+        }
+        cancelled = true;
+        RateLimiter limiter = client.getRateLimiter(this);
+        if (limiter != null) {
+            limiter.remove(this);
+        }
+        //// the requests coalesced onto this one were not cancelled themselves, so send them on
+        List<HttpRequest> followers = client.detachFollowers(this);
+        if (request instanceof HttpUriRequest) {
+            ((HttpUriRequest) request).abort();
+        }
+        Future<?> execution = this.execution;
+        if (execution != null) {
+            execution.cancel(true);
+        }
+        if (followers != null) {
+            client.redispatch(followers);
+        }
+        if (reason != null) {
+            deliverFailure(reason);
+        } else {
+            deliverFailure(new CancellationException("RESTClient: Request cancelled"));
+        }
+        return true;
+    }
+
+    /** Marks the request as no longer outstanding, returning false if it
+     * already was, because it completed, failed or was cancelled. */
+    boolean finish() {
+        if (!client.outstandingRequests.remove(this)) {
+            return false;
+        }
+        ScheduledFuture<?> timer = timeoutTimer;
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        return true;
+    }
+
+    /**
+     * Builds the parts of the request that are too slow to build on the
+     * animation thread, such as the query string or the request entity.
+     * Called once, on a worker thread, before the request is sent.
+     */
+    void build() throws IOException {
+    }
+
+    /** Returns true if build() has work to do, or the request is to be
+     * signed, either of which belongs on a worker thread. */
+    boolean needsBuild() {
+        return client.useOAuth;
+    }
+
+    void ensureBuilt() throws IOException {
+        if (!built) {
+            build();
+            built = true;
+        }
+    }
+
+    /** Applies the request's timeouts, or the client's, and signs it for
+     * OAuth, just before it is sent. */
+    void configure() throws IOException {
+        ensureBuilt();
+        if (client.useOAuth) {
+            try {
+                client.getOAuthSigner().sign(request);
+            } catch (Exception e) {
+                System.err.println("RESTClient: Unable to sign " + request.getRequestLine().getMethod() + " request for OAuth");
+            }
+        }
+        int connect = connectTimeout >= 0 ? connectTimeout : client.connectTimeout;
+        int read = readTimeout >= 0 ? readTimeout : client.readTimeout;
+        if ((connect > 0 || read > 0) && request instanceof HttpRequestBase) {
+            ((HttpRequestBase) request).setConfig(RequestConfig.custom()
+                    .setConnectTimeout(connect)
+                    .setSocketTimeout(read)
+                    .build());
+        }
+    }
+
     public void background(HttpResponse response) {
     }
 
@@ -52,18 +237,167 @@ public class HttpRequest extends Thread {
      */
     @Override
     public void run() {
+        client.activeCount.incrementAndGet();
         try {
-            if (client.logging) {
-                PApplet.println("RESTClient: Connecting to " + host.getHostName() + " on port " + host.getPort());
-                PApplet.println("RESTClient: " + request.getRequestLine().toString());
+            configure();
+            log();
+            acquireConnection();
+            started();
+            HttpClientContext context = client.cacheStorage != null ? HttpCacheContext.create() : HttpClientContext.create();
+            org.apache.http.HttpResponse httpResponse = client.httpClient.execute(host, request, context);
+            firstByteNanos = System.nanoTime();
+            Long connect = (Long) context.getAttribute(RESTClient.TimedSocketFactory.CONNECT_NANOS);
+            connectNanos = connect != null ? connect : -1;
+            if (client.cacheStorage != null) {
+                client.countCacheResponse((HttpCacheContext) context);
+            }
+            completed(httpResponse);
+        } catch (Exception e) {
+            failed(e);
+        } finally {
+            client.activeCount.decrementAndGet();
+        }
+    }
+
+    void started() {
+        startedNanos = System.nanoTime();
+        connectNanos = -1;
+        client.stats.queueWait.record(startedNanos - queuedNanos);
+    }
+
+    void log() {
+        if (client.logging) {
+            PApplet.println("RESTClient: Connecting to " + host.getHostName() + " on port " + host.getPort());
+            PApplet.println("RESTClient: " + request.getRequestLine().toString());
+        }
+    }
+
+    void completed(org.apache.http.HttpResponse httpResponse) {
+        releaseRateLimit(httpResponse);
+        if (cancelled || client.retry(this, httpResponse, null)) {
+            client.stats.recordResponse(this, httpResponse, 0);
+            //// drain the unwanted response so its connection can be reused
+            EntityUtils.consumeQuietly(httpResponse.getEntity());
+            if (httpResponse instanceof Closeable) {
+                try {
+                    ((Closeable) httpResponse).close();
+                } catch (IOException e) { }
             }
-            org.apache.http.HttpResponse httpResponse = client.httpClient.execute(host, request);
+            releaseConnection();
+            return;
+        }
+        List<HttpRequest> followers = null;
+        try {
             HttpResponse response = new HttpResponse(httpResponse);
+            followers = client.detachFollowers(this);
+            if (future != null || client.bufferResponses || followers != null) {
+                //// futures may be read on any thread at any time, so release the connection now,
+                //// and decompress here rather than on the animation thread
+                response.buffer(client.responseMemoryLimit);
+                releaseConnection();
+            }
+            client.stats.recordResponse(this, httpResponse, response.body != null ? response.contentLength : response.entity != null ? response.entity.getContentLength() : 0);
+            //// otherwise decompress as the content is read, so it can still be streamed
+            response.decodeOnRead();
             background(response);
-            client.put(this, response);
+            if (!finish()) {
+                //// cancelled or timed out while the response was being read
+                response.close();
+                response.release();
+                releaseConnection();
+                if (followers != null) {
+                    client.redispatch(followers);
+                }
+                return;
+            }
+            if (future != null && !client.completeFuturesOnAnimationThread) {
+                if (!future.complete(response)) {
+                    //// the future was cancelled by its caller
+                    response.release();
+                }
+            } else {
+                client.put(this, response);
+            }
+            if (followers != null) {
+                for (HttpRequest follower: followers) {
+                    if (!follower.finish()) {
+                        continue;
+                    }
+                    HttpResponse copy = response.copy();
+                    follower.background(copy);
+                    client.put(follower, copy);
+                }
+            }
         } catch (Exception e) {
-            System.err.println("RESTClient: An error occurred- ");
-            e.printStackTrace();;
+            failed(e);
+            if (followers != null) {
+                if (cancelled || client.outstandingRequests.contains(this)) {
+                    //// the followers were detached already, so they won't share the retry or cancellation
+                    client.redispatch(followers);
+                } else {
+                    for (HttpRequest follower: followers) {
+                        follower.fail(e);
+                    }
+                }
+            }
+        }
+    }
+
+    void failed(Exception e) {
+        releaseConnection();
+        releaseRateLimit(null);
+        client.stats.recordError(this);
+        if (cancelled || !client.outstandingRequests.contains(this) || client.retry(this, null, e)) {
+            return;
+        }
+        fail(e);
+    }
+
+    void fail(Exception e) {
+        if (finish()) {
+            deliverFailure(e);
+        }
+    }
+
+    void deliverFailure(Exception e) {
+        List<HttpRequest> followers = client.detachFollowers(this);
+        if (followers != null) {
+            for (HttpRequest follower: followers) {
+                follower.fail(e);
+            }
+        }
+        boolean cancellation = cancelled && e instanceof CancellationException;
+        if (future != null && (cancellation || !client.completeFuturesOnAnimationThread)) {
+            future.completeExceptionally(e);
+            return;
+        }
+        if (!cancellation) {
+            //// report the error on the animation thread along with the responses
+            error = e;
+            client.put(this, null);
+        }
+    }
+
+    void releaseRateLimit(org.apache.http.HttpResponse httpResponse) {
+        RateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            rateLimiter = null;
+            limiter.completed(httpResponse);
+        }
+    }
+
+    void acquireConnection() throws InterruptedException {
+        Semaphore permits = client.connectionPermits;
+        if (permits != null) {
+            permits.acquire();
+            connectionPermit = permits;
+        }
+    }
+
+    void releaseConnection() {
+        if (connectionPermit != null) {
+            connectionPermit.release();
+            connectionPermit = null;
         }
     }
 }
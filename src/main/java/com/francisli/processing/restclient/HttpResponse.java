@@ -15,16 +15,34 @@
  */
 package com.francisli.processing.restclient;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.NoSuchElementException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.http.Consts;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.StatusLine;
+import org.apache.http.client.entity.DecompressingEntity;
+import org.apache.http.client.entity.DeflateInputStream;
+import org.apache.http.client.entity.InputStreamFactory;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.util.EntityUtils;
+import org.brotli.dec.BrotliInputStream;
 import processing.data.JSONObject;
 import processing.data.XML;
 
@@ -38,6 +56,11 @@ import processing.data.XML;
 public class HttpResponse {
     org.apache.http.HttpResponse response;
     HttpEntity entity;
+    ResponseBody body;
+    boolean released;
+    String contentString;
+    JSONObject contentJSONObject;
+    XML contentXML;
 
     /** int: the HTTP status code of this response */
     public int statusCode;
@@ -56,11 +79,13 @@ public class HttpResponse {
         this.statusMessage = status.getReasonPhrase();
 
         entity = response.getEntity();
-        Header contentType = entity.getContentType();
-        if (contentType != null) {
-            this.contentType = contentType.getValue();
+        if (entity != null) {
+            Header contentType = entity.getContentType();
+            if (contentType != null) {
+                this.contentType = contentType.getValue();
+            }
+            contentLength = entity.getContentLength();
         }
-        contentLength = entity.getContentLength();
     }
 
     /** Returns an HTTP header value by key name.
@@ -93,7 +118,7 @@ public class HttpResponse {
     }
 
     HashMap<String, String> links;
-    Pattern linkPattern = Pattern.compile("<([^>]+)>; rel=\"([^\"]+)\"");
+    static final Pattern linkPattern = Pattern.compile("<([^>]+)>; rel=\"([^\"]+)\"");
 
     void parseLinkHeader() {
         if (links == null) {
@@ -157,37 +182,303 @@ public class HttpResponse {
     }
 
     /**
-     * Converts and returns the response content as a String.
+     * Converts and returns the response content as a String. The String is
+     * kept, so calling this again returns it without reading the content.
      *
      * @return String
      */
     public String getContentAsString() {
-        try {
-            return EntityUtils.toString(entity);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        if (contentString == null) {
+            try {
+                contentString = EntityUtils.toString(entity);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
         }
+        return contentString;
     }
 
     /**
-     * Parses the data as a JSON document and returns it as a JSONObject.
+     * Parses the data as a JSON document and returns it as a JSONObject. The
+     * parsed object is kept and returned again on later calls.
      *
      * @return JSONObject
      */
     public JSONObject getContentAsJSONObject() {
-        return JSONObject.parse(getContentAsString());
+        if (contentJSONObject == null) {
+            contentJSONObject = JSONObject.parse(getContentAsString());
+        }
+        return contentJSONObject;
     }
 
     /**
-     * Parses the data as an XML document and returns an XML object.
+     * Parses the data as an XML document and returns an XML object. The
+     * parsed object is kept and returned again on later calls.
      *
      * @return XML
      */
     public XML getContentAsXML() {
+        if (contentXML == null) {
+            try {
+                contentXML = XML.parse(getContentAsString());
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return contentXML;
+    }
+
+    /**
+     * Reads the content incrementally in chunks of up to the specified size,
+     * without holding the whole response in memory. The content can only be
+     * iterated once.
+     *
+     * @param size int: the maximum number of bytes in each chunk
+     * @return Iterable
+     */
+    public Iterable<byte[]> getContentChunks(final int size) {
+        final InputStream in = getContent();
+        return iterable(new ContentIterator<byte[]>(in) {
+            byte[] read() throws IOException {
+                byte[] buffer = new byte[size];
+                int length = 0;
+                while (length < size) {
+                    int count = in.read(buffer, length, size - length);
+                    if (count < 0) {
+                        break;
+                    }
+                    length += count;
+                }
+                if (length == 0) {
+                    return null;
+                }
+                if (length < size) {
+                    byte[] chunk = new byte[length];
+                    System.arraycopy(buffer, 0, chunk, 0, length);
+                    return chunk;
+                }
+                return buffer;
+            }
+        });
+    }
+
+    /**
+     * Reads the content incrementally one line of text at a time, without
+     * holding the whole response in memory. The content can only be iterated
+     * once.
+     *
+     * @return Iterable
+     */
+    public Iterable<String> getContentLines() {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(getContent(), getCharset(Consts.ISO_8859_1)));
+        return iterable(new ContentIterator<String>(reader) {
+            String read() throws IOException {
+                return reader.readLine();
+            }
+        });
+    }
+
+    /**
+     * Reads a JSON document whose top level is an array of objects, parsing
+     * one object at a time as it arrives instead of the whole document at
+     * once. Only one record is held in memory at a time. The content can only
+     * be iterated once.
+     *
+     * @return Iterable
+     */
+    public Iterable<JSONObject> getContentAsJSONRecords() {
+        return iterable(new JSONRecordReader(new InputStreamReader(getContent(), getCharset(Consts.UTF_8))));
+    }
+
+    /**
+     * Returns a StAX reader that parses the XML content incrementally as it
+     * arrives, for documents too large to parse into an XML object.
+     *
+     * @return XMLStreamReader
+     */
+    public XMLStreamReader getContentAsXMLStream() {
         try {
-            return XML.parse(getContentAsString());
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            return factory.createXMLStreamReader(getContent());
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
+
+    Charset getCharset(Charset defaultCharset) {
+        Charset charset = null;
+        if (entity != null) {
+            charset = ContentType.getOrDefault(entity).getCharset();
+        }
+        return charset != null ? charset : defaultCharset;
+    }
+
+    static <T> Iterable<T> iterable(final Iterator<T> iterator) {
+        return new Iterable<T>() {
+            public Iterator<T> iterator() {
+                return iterator;
+            }
+        };
+    }
+
+    /**
+     * Iterates over items read one at a time from the content, closing the
+     * content when it is exhausted.
+     */
+    abstract static class ContentIterator<T> implements Iterator<T> {
+        Closeable content;
+        T next;
+        boolean done;
+
+        ContentIterator(Closeable content) {
+            this.content = content;
+        }
+
+        /** Returns the next item, or null at the end of the content */
+        abstract T read() throws IOException;
+
+        public boolean hasNext() {
+            if (next == null && !done) {
+                try {
+                    next = read();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                if (next == null) {
+                    done = true;
+                    try {
+                        content.close();
+                    } catch (IOException e) { }
+                }
+            }
+            return next != null;
+        }
+
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T item = next;
+            next = null;
+            return item;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Reads the content off the connection and releases the connection, so
+     * the content can be read again later from memory, or from a temporary
+     * file if it is larger than the threshold.
+     */
+    void buffer(int threshold) throws IOException {
+        if (entity != null && body == null) {
+            InputStream content = entity.getContent();
+            InputStream decoded = decode(content);
+            body = ResponseBody.read(decoded, threshold);
+            AbstractHttpEntity buffered = body.toEntity();
+            buffered.setContentType(entity.getContentType());
+            if (decoded == content) {
+                buffered.setContentEncoding(entity.getContentEncoding());
+            } else {
+                removeEncodingHeaders();
+            }
+            entity = buffered;
+            contentLength = body.length;
+        }
+        close();
+    }
+
+    /**
+     * Decodes compressed content as it is read rather than all at once, for
+     * responses delivered without being buffered, so that streaming a large
+     * compressed response never holds all of it.
+     */
+    void decodeOnRead() {
+        final String encoding = getCompression();
+        if (encoding == null) {
+            return;
+        }
+        entity = new DecompressingEntity(entity, new InputStreamFactory() {
+            public InputStream create(InputStream content) throws IOException {
+                return decode(content, encoding);
+            }
+        });
+        removeEncodingHeaders();
+        contentLength = -1;
+    }
+
+    void removeEncodingHeaders() {
+        //// the content no longer matches these headers once decoded
+        response.removeHeaders("Content-Encoding");
+        response.removeHeaders("Content-Length");
+        response.removeHeaders("Content-MD5");
+    }
+
+    /** Returns the Content-Encoding of the content if decode() knows how to
+     * decode it, otherwise null. */
+    String getCompression() {
+        Header header = entity != null && body == null ? entity.getContentEncoding() : null;
+        if (header != null) {
+            String encoding = header.getValue().trim().toLowerCase(Locale.ROOT);
+            if (encoding.equals("gzip") || encoding.equals("x-gzip") || encoding.equals("deflate") || encoding.equals("br")) {
+                return encoding;
+            }
+        }
+        return null;
+    }
+
+    InputStream decode(InputStream content) throws IOException {
+        return decode(content, getCompression());
+    }
+
+    static InputStream decode(InputStream content, String encoding) throws IOException {
+        if (encoding == null) {
+            return content;
+        } else if (encoding.equals("br")) {
+            return new BrotliInputStream(content);
+        } else if (encoding.equals("deflate")) {
+            return new DeflateInputStream(content);
+        }
+        return new GZIPInputStream(content);
+    }
+
+    /** Returns a response sharing this response's buffered content. */
+    HttpResponse copy() throws IOException {
+        HttpResponse copy = new HttpResponse(response);
+        copy.entity = entity;
+        copy.contentLength = contentLength;
+        if (body != null) {
+            copy.body = body.retain();
+        }
+        return copy;
+    }
+
+    /**
+     * Deletes the temporary file holding the content of a large response,
+     * after which the content can no longer be read. Responses passed to
+     * responseReceived() are disposed of when the callback returns, but call
+     * this when you are done with a response from a future, a RequestBatch or
+     * a Paginator.
+     */
+    public void dispose() {
+        release();
+    }
+
+    /** Deletes any temporary file holding the content. */
+    synchronized void release() {
+        if (body != null && !released) {
+            released = true;
+            body.delete();
+        }
+    }
+
+    void close() throws IOException {
+        if (response instanceof Closeable) {
+            ((Closeable) response).close();
+        }
+    }
 }
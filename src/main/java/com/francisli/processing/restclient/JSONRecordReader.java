@@ -0,0 +1,106 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import processing.data.JSONObject;
+
+/**
+ * Reads the objects in a top-level JSON array one at a time. Each record is
+ * scanned into a buffer just large enough to hold it and then parsed, so
+ * memory use is bounded by the largest record rather than the document.
+ */
+class JSONRecordReader extends HttpResponse.ContentIterator<JSONObject> {
+    Reader reader;
+    char[] buffer = new char[8192];
+    int position, limit;
+    boolean started;
+    StringBuilder record = new StringBuilder();
+
+    JSONRecordReader(Reader reader) {
+        super(reader);
+        this.reader = reader;
+    }
+
+    JSONObject read() throws IOException {
+        int c = skipWhitespace();
+        if (!started) {
+            if (c != '[') {
+                throw new IOException("RESTClient: Expected a JSON array of records");
+            }
+            started = true;
+            c = skipWhitespace();
+        } else if (c == ',') {
+            c = skipWhitespace();
+        }
+        if (c == ']' || c < 0) {
+            return null;
+        }
+        if (c != '{') {
+            throw new IOException("RESTClient: Expected a JSON object in the array of records");
+        }
+        //// scan to the matching closing brace, skipping over braces inside strings
+        record.setLength(0);
+        int depth = 0;
+        boolean inString = false;
+        while (c >= 0) {
+            record.append((char) c);
+            if (inString) {
+                if (c == '\\') {
+                    c = nextChar();
+                    if (c >= 0) {
+                        record.append((char) c);
+                    }
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+                if (depth == 0) {
+                    return JSONObject.parse(record.toString());
+                }
+            }
+            c = nextChar();
+        }
+        throw new IOException("RESTClient: Unexpected end of JSON content");
+    }
+
+    int nextChar() throws IOException {
+        if (position == limit) {
+            limit = reader.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+
+    int skipWhitespace() throws IOException {
+        int c = nextChar();
+        while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            c = nextChar();
+        }
+        return c;
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A LatencyHistogram counts durations in buckets that grow exponentially,
+ * with eight linear steps between each power of two, so percentiles are
+ * accurate to within 12.5% from a microsecond up to hours. Recording a value
+ * only increments a few counters and never allocates, so it can be updated
+ * from many threads for every request.
+ *
+ * @author Francis Li
+ * @usage Application
+ * @param histogram LatencyHistogram: any variable of type LatencyHistogram
+ */
+public class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    AtomicLong count = new AtomicLong();
+    AtomicLong sum = new AtomicLong();
+    AtomicLong max = new AtomicLong();
+
+    /** Records a duration measured with System.nanoTime(). */
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long previous;
+        while (micros > (previous = max.get()) && !max.compareAndSet(previous, micros)) { }
+    }
+
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min((exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub, BUCKETS - 1);
+    }
+
+    /** Returns the largest value that falls in the specified bucket. */
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /** Returns the number of durations recorded.
+     *
+     * @return long
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /** Returns the mean duration in milliseconds.
+     *
+     * @return float
+     */
+    public float getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / (n * 1000f);
+    }
+
+    /** Returns the longest duration recorded, in milliseconds.
+     *
+     * @return float
+     */
+    public float getMax() {
+        return max.get() / 1000f;
+    }
+
+    /** Returns the duration in milliseconds that the specified percentage of
+     * recorded durations were shorter than or equal to, such as 50 for the
+     * median or 99 for the 99th percentile.
+     *
+     * @param percentile float: a percentage between 0 and 100
+     * @return float
+     */
+    public float getPercentile(float percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValue(i), max.get()) / 1000f;
+            }
+        }
+        return getMax();
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import oauth.signpost.OAuth;
+import oauth.signpost.commonshttp.CommonsHttpOAuthConsumer;
+import oauth.signpost.exception.OAuthException;
+import oauth.signpost.exception.OAuthMessageSignerException;
+import oauth.signpost.http.HttpParameters;
+import oauth.signpost.signature.OAuthMessageSigner;
+import oauth.signpost.signature.SignatureBaseString;
+
+/**
+ * An OAuthSigner signs requests with one set of OAuth 1.0a credentials.
+ * Signpost consumers are not thread safe, so the signer keeps a pool of them,
+ * each with its HMAC key set up once, and lends one to each worker thread as
+ * it signs a request.
+ */
+class OAuthSigner {
+    String consumerKey;
+    String consumerSecret;
+    String token;
+    String tokenSecret;
+    ConcurrentLinkedQueue<Consumer> consumers = new ConcurrentLinkedQueue<Consumer>();
+
+    OAuthSigner(String consumerKey, String consumerSecret, String token, String tokenSecret) {
+        this.consumerKey = consumerKey;
+        this.consumerSecret = consumerSecret;
+        this.token = token;
+        this.tokenSecret = tokenSecret;
+    }
+
+    boolean matches(String consumerKey, String consumerSecret, String token, String tokenSecret) {
+        return equals(this.consumerKey, consumerKey) && equals(this.consumerSecret, consumerSecret)
+                && equals(this.token, token) && equals(this.tokenSecret, tokenSecret);
+    }
+
+    static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    void sign(org.apache.http.HttpRequest request) throws OAuthException {
+        Consumer consumer = consumers.poll();
+        if (consumer == null) {
+            consumer = new Consumer();
+        }
+        try {
+            //// a retried request is signed again, with a fresh nonce and timestamp
+            request.removeHeaders(OAuth.HTTP_AUTHORIZATION_HEADER);
+            consumer.sign(request);
+        } finally {
+            consumers.offer(consumer);
+        }
+    }
+
+    class Consumer extends CommonsHttpOAuthConsumer {
+        private static final long serialVersionUID = 1L;
+
+        Consumer() {
+            super(consumerKey, consumerSecret);
+            setMessageSigner(new HmacSha1Signer());
+            setTokenWithSecret(token, tokenSecret);
+        }
+
+        protected String generateNonce() {
+            return Long.toString(ThreadLocalRandom.current().nextLong());
+        }
+    }
+
+    /** Signs with HMAC-SHA1 like Signpost's own signer, but keeps its Mac
+     * between requests instead of setting up the key every time. */
+    static class HmacSha1Signer extends OAuthMessageSigner {
+        private static final long serialVersionUID = 1L;
+
+        transient Mac mac;
+
+        public String getSignatureMethod() {
+            return "HMAC-SHA1";
+        }
+
+        public String sign(oauth.signpost.http.HttpRequest request, HttpParameters parameters) throws OAuthMessageSignerException {
+            try {
+                if (mac == null) {
+                    String key = OAuth.percentEncode(getConsumerSecret()) + '&' + OAuth.percentEncode(getTokenSecret());
+                    mac = Mac.getInstance("HmacSHA1");
+                    mac.init(new SecretKeySpec(key.getBytes(OAuth.ENCODING), "HmacSHA1"));
+                }
+                String base = new SignatureBaseString(request, parameters).generate();
+                return base64Encode(mac.doFinal(base.getBytes(OAuth.ENCODING))).trim();
+            } catch (GeneralSecurityException e) {
+                throw new OAuthMessageSignerException(e);
+            } catch (UnsupportedEncodingException e) {
+                throw new OAuthMessageSignerException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * <p>A Paginator walks a collection that is split across pages, following the
+ * rel="next" URL in each page's RFC 5988 Link header. The next pages are
+ * fetched in the background as soon as their links arrive, up to a limited
+ * number ahead of the pages you have read, and are returned in order.</p>
+ *
+ * <pre>
+ * Paginator pages = client.paginate("/items");
+ * pages.setPageLimit(100);
+ *
+ * void draw() {
+ *   while (pages.available() > 0) {
+ *     HttpResponse page = pages.next();
+ *   }
+ * }
+ * </pre>
+ *
+ * <p>The first page is requested by the first call to available(), hasNext()
+ * or next(), so the prefetch, page limit and stop condition set before then
+ * apply from the first page on. hasNext() and next() wait for the next page
+ * to arrive, so in a sketch either check available() first or read the pages
+ * on another thread. Call dispose() on each page once you are done with
+ * it.</p>
+ *
+ * @author Francis Li
+ * @usage Application
+ * @param pages Paginator: any variable of type Paginator
+ */
+public class Paginator implements Iterable<HttpResponse>, Iterator<HttpResponse> {
+    RESTClient client;
+    int prefetch = 2;
+    int pageLimit;
+    Predicate<HttpResponse> stopCondition;
+
+    ArrayDeque<HttpResponse> pages = new ArrayDeque<HttpResponse>();
+    HttpRequest first;
+    HttpRequest current;
+    String nextLink;
+    int requested;
+    int received;
+    boolean done;
+    Exception error;
+
+    Paginator(RESTClient client, String path, Map params) {
+        this.client = client;
+        first = new GetRequest(client, path, params);
+    }
+
+    /** Sets the number of pages fetched ahead of the pages you have read.
+     * Defaults to 2. Pages are always fetched one after another, since each
+     * page's link is only known once the page before it has arrived.
+     *
+     * @param pages int: the number of pages to fetch ahead
+     * @return Paginator
+     */
+    public Paginator setPrefetch(int pages) {
+        synchronized (this) {
+            prefetch = pages;
+        }
+        fetchNext();
+        return this;
+    }
+
+    /** Sets the maximum number of pages to fetch.
+     *
+     * @param pages int: the maximum number of pages, or 0 for no limit
+     * @return Paginator
+     */
+    public synchronized Paginator setPageLimit(int pages) {
+        pageLimit = pages;
+        return this;
+    }
+
+    /** Sets a condition that stops the paging. The first page for which the
+     * condition is true is still returned, but no pages after it are fetched.
+     *
+     * @param condition Predicate: tested with each page as it arrives
+     * @return Paginator
+     */
+    public synchronized Paginator setStopCondition(Predicate<HttpResponse> condition) {
+        stopCondition = condition;
+        return this;
+    }
+
+    /** Returns the number of pages that have arrived and not yet been read.
+     * This never waits.
+     *
+     * @return int
+     */
+    public int available() {
+        start();
+        synchronized (this) {
+            return pages.size();
+        }
+    }
+
+    /** Returns the number of pages received so far.
+     *
+     * @return int
+     */
+    public synchronized int getPageCount() {
+        return received;
+    }
+
+    /** Returns the error that stopped the paging, or null if none.
+     *
+     * @return Exception
+     */
+    public synchronized Exception getError() {
+        return error;
+    }
+
+    /** Returns true if another page will be returned by next(), waiting for it
+     * to arrive if necessary.
+     *
+     * @return boolean
+     */
+    public boolean hasNext() {
+        start();
+        synchronized (this) {
+            while (pages.isEmpty() && !done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return !pages.isEmpty();
+        }
+    }
+
+    /** Returns the next page, in order, waiting for it to arrive if necessary.
+     *
+     * @return HttpResponse
+     */
+    public HttpResponse next() {
+        start();
+        HttpResponse page;
+        synchronized (this) {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            page = pages.poll();
+        }
+        fetchNext();
+        return page;
+    }
+
+    /**
+     * @exclude
+     */
+    public Iterator<HttpResponse> iterator() {
+        return this;
+    }
+
+    /** Stops the paging, cancelling the page in flight and discarding the
+     * pages not yet read.
+     */
+    public void cancel() {
+        HttpRequest request;
+        synchronized (this) {
+            done = true;
+            first = null;
+            nextLink = null;
+            for (HttpResponse page: pages) {
+                page.release();
+            }
+            pages.clear();
+            request = current;
+            current = null;
+            notifyAll();
+        }
+        if (request != null) {
+            request.cancel();
+        }
+    }
+
+    /** Requests the first page, if it hasn't been requested yet. */
+    void start() {
+        HttpRequest request;
+        synchronized (this) {
+            request = first;
+            first = null;
+        }
+        if (request != null) {
+            fetch(request);
+        }
+    }
+
+    void fetchNext() {
+        HttpRequest request;
+        synchronized (this) {
+            if (current != null || nextLink == null || pages.size() >= Math.max(prefetch, 1)) {
+                return;
+            }
+            if (pageLimit > 0 && requested >= pageLimit) {
+                done = true;
+                nextLink = null;
+                notifyAll();
+                return;
+            }
+            request = new GetRequest(client, nextLink);
+            nextLink = null;
+        }
+        fetch(request);
+    }
+
+    void fetch(final HttpRequest request) {
+        synchronized (this) {
+            current = request;
+            requested++;
+        }
+        //// dispatch outside the lock, since a full request queue may block
+        CompletableFuture<HttpResponse> response;
+        try {
+            response = client.submit(request);
+        } catch (RuntimeException e) {
+            //// rejected by a full queue or a disposed client, so stop with the error
+            request.future.completeExceptionally(e);
+            completed(request, null, e);
+            return;
+        }
+        response.whenComplete(new BiConsumer<HttpResponse, Throwable>() {
+            public void accept(HttpResponse response, Throwable error) {
+                completed(request, response, error);
+            }
+        });
+    }
+
+    void completed(HttpRequest request, HttpResponse response, Throwable throwable) {
+        synchronized (this) {
+            if (current != request) {
+                if (response != null) {
+                    response.release();
+                }
+                return;
+            }
+            current = null;
+            if (response == null) {
+                error = throwable instanceof Exception ? (Exception) throwable : new RuntimeException(throwable);
+                done = true;
+            } else {
+                pages.add(response);
+                received++;
+                String link = response.getNextHeaderLink();
+                //// error pages are returned, but their links are not followed
+                if (link == null || response.statusCode >= 400
+                        || (pageLimit > 0 && requested >= pageLimit)
+                        || (stopCondition != null && stopCondition.test(response))) {
+                    done = true;
+                } else {
+                    nextLink = link;
+                }
+            }
+            notifyAll();
+        }
+        fetchNext();
+    }
+}
@@ -16,7 +16,14 @@
 package com.francisli.processing.restclient;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.apache.http.Consts;
@@ -24,18 +31,24 @@ import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.entity.mime.content.ByteArrayBody;
 import org.apache.http.entity.mime.content.FileBody;
+import org.apache.http.entity.mime.content.InputStreamBody;
 import org.apache.http.message.BasicNameValuePair;
 
-import oauth.signpost.OAuthConsumer;
-import oauth.signpost.commonshttp.CommonsHttpOAuthConsumer;
-
 /**
  * <p>An HttpRequest object represents a single HTTP request to a server.  Each
- * request is dispatched in its own background thread and is passed along with
- * its response in the responseReceived() callback.</p>
+ * request is dispatched to a background worker thread owned by its RESTClient
+ * and is passed along with its response in the responseReceived() callback.</p>
  *
  * @author Francis Li
  * @usage Application
@@ -43,7 +56,7 @@ import oauth.signpost.commonshttp.CommonsHttpOAuthConsumer;
  */
 public class PostRequest extends HttpRequest {
     public PostRequest(RESTClient client, String path) {
-      this(client, path, null, null);
+      this(client, path, (Map) null, null);
     }
 
     public PostRequest(RESTClient client, String path, Map params) {
@@ -59,8 +72,47 @@ public class PostRequest extends HttpRequest {
       if (!path.startsWith("/")) {
           path = "/" + path;
       }
-      //// finally, invoke request
-      HttpEntityEnclosingRequestBase post = newRequest(this.host.toURI() + path);
+      //// keep copies of the params and files, the entity is built on the worker
+      if (params != null) {
+          this.params = new LinkedHashMap<Object, Object>((Map<?, ?>) params);
+      }
+      if (files != null) {
+          this.files = new LinkedHashMap<Object, Object>((Map<?, ?>) files);
+      }
+      this.request = newRequest(this.host.toURI() + path);
+    }
+
+    /**
+     * Sends the body as is, streaming it to the server instead of loading it
+     * into memory. The body may be a byte[], String, File, Path, InputStream,
+     * ReadableByteChannel or ContentProducer. Bodies of unknown length are sent
+     * with chunked transfer encoding.
+     */
+    PostRequest(RESTClient client, String path, String contentType, Object body) {
+      super();
+      this.client = client;
+      this.host = client.getHost();
+      //// clean up path a little bit- remove whitespace, add slash prefix
+      path = path.trim();
+      if (!path.startsWith("/")) {
+          path = "/" + path;
+      }
+      this.contentType = contentType;
+      this.body = body;
+      this.request = newRequest(this.host.toURI() + path);
+    }
+
+    Map<Object, Object> params;
+    Map<Object, Object> files;
+    String contentType;
+    Object body;
+
+    void build() throws IOException {
+      HttpEntityEnclosingRequestBase post = (HttpEntityEnclosingRequestBase) request;
+      if (body != null) {
+          post.setEntity(newEntity(body, contentType));
+          return;
+      }
       MultipartEntityBuilder builder = null;
       //// if files passed, set up a multipart request
       if (files != null) {
@@ -69,6 +121,12 @@ public class PostRequest extends HttpRequest {
               Object value = files.get(key);
               if (value instanceof byte[]) {
                   builder.addPart((String)key, new ByteArrayBody((byte[])value, "bytes.dat"));
+              } else if (value instanceof File) {
+                  builder.addPart((String)key, new FileBody((File) value));
+              } else if (value instanceof Path) {
+                  builder.addPart((String)key, new FileBody(((Path) value).toFile()));
+              } else if (value instanceof InputStream) {
+                  builder.addPart((String)key, new InputStreamBody((InputStream) value, "stream.dat"));
               } else if (value instanceof String) {
                   File file = new File((String) value);
                   if (!file.exists()) {
@@ -96,15 +154,40 @@ public class PostRequest extends HttpRequest {
       if (builder != null) {
         post.setEntity(builder.build());
       }
-      if (client.useOAuth) {
-          OAuthConsumer consumer = new CommonsHttpOAuthConsumer(client.oauthConsumerKey, client.oauthConsumerSecret);
-          consumer.setTokenWithSecret(client.oauthAccessToken, client.oauthAccessTokenSecret);
-          try {
-              consumer.sign(post);
-          } catch (Exception e) {
-              System.err.println("HttpClient: Unable to sign POST request for OAuth");
+    }
+
+    boolean needsBuild() {
+      return params != null || files != null || body != null || super.needsBuild();
+    }
+
+    static AbstractHttpEntity newEntity(Object body, String contentType) {
+      ContentType type = contentType != null ? ContentType.parse(contentType) : ContentType.DEFAULT_BINARY;
+      if (body instanceof byte[]) {
+          return new ByteArrayEntity((byte[]) body, type);
+      } else if (body instanceof String) {
+          return new StringEntity((String) body, type.getCharset() != null ? type : type.withCharset(Consts.UTF_8));
+      } else if (body instanceof Path) {
+          return new FileEntity(((Path) body).toFile(), type);
+      } else if (body instanceof File) {
+          return new FileEntity((File) body, type);
+      } else if (body instanceof InputStream) {
+          return new InputStreamEntity((InputStream) body, type);
+      } else if (body instanceof ReadableByteChannel) {
+          ReadableByteChannel channel = (ReadableByteChannel) body;
+          long length = -1;
+          if (channel instanceof FileChannel) {
+              try {
+                  FileChannel file = (FileChannel) channel;
+                  length = file.size() - file.position();
+              } catch (IOException e) { }
           }
+          return new InputStreamEntity(Channels.newInputStream(channel), length, type);
+      } else if (body instanceof ContentProducer) {
+          EntityTemplate entity = new EntityTemplate((ContentProducer) body);
+          entity.setContentType(type.toString());
+          return entity;
       }
+      throw new IllegalArgumentException("RESTClient: Unsupported request body " + (body == null ? null : body.getClass().getName()));
     }
 
     HttpEntityEnclosingRequestBase newRequest(String uri) {
@@ -22,8 +22,8 @@ import org.apache.http.client.methods.HttpPut;
 
 /**
  * <p>An HttpRequest object represents a single HTTP request to a server.  Each
- * request is dispatched in its own background thread and is passed along with
- * its response in the responseReceived() callback.</p>
+ * request is dispatched to a background worker thread owned by its RESTClient
+ * and is passed along with its response in the responseReceived() callback.</p>
  *
  * @author Francis Li
  * @usage Application
@@ -31,7 +31,7 @@ import org.apache.http.client.methods.HttpPut;
  */
 public class PutRequest extends PostRequest {
   public PutRequest(RESTClient client, String path) {
-    this(client, path, null, null);
+    this(client, path, (Map) null, null);
   }
 
   public PutRequest(RESTClient client, String path, Map params) {
@@ -42,6 +42,10 @@ public class PutRequest extends PostRequest {
     super(client, path, params, files);
   }
 
+  PutRequest(RESTClient client, String path, String contentType, Object body) {
+    super(client, path, contentType, body);
+  }
+
   HttpEntityEnclosingRequestBase newRequest(String uri) {
     return new HttpPut(uri);
   }
@@ -16,25 +16,79 @@
  */
 package com.francisli.processing.restclient;
 
+import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import org.apache.http.Consts;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpHost;
-import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.RequestLine;
+import org.apache.http.client.cache.CacheResponseStatus;
+import org.apache.http.client.cache.HttpCacheContext;
+import org.apache.http.client.cache.ResourceFactory;
+import org.apache.http.client.entity.GzipCompressingEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.cache.CacheConfig;
+import org.apache.http.impl.client.cache.CachingHttpClientBuilder;
+import org.apache.http.impl.client.cache.HeapResourceFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.protocol.HttpContext;
 import oauth.signpost.OAuthConsumer;
 import oauth.signpost.commonshttp.CommonsHttpOAuthConsumer;
 import processing.core.*;
@@ -61,6 +115,19 @@ import processing.core.*;
  * a responseReceived() callback.  The library will invoke your responseReceived()
  * callback at the beginning of a frame, before your draw() function is called.
  *
+ * <p>If a request fails without a response, for example because the server
+ * could not be reached, an optional callback is invoked instead:</p>
+ *
+ * <pre>
+ * void requestFailed(HttpRequest request, Exception error) {
+ *
+ * }
+ * </pre>
+ *
+ * <p>Instead of responseReceived(), responses can also be routed to objects
+ * implementing ResponseListener, either for the whole client or per request
+ * with HttpRequest.setResponseListener().</p>
+ *
  * @example
  * import com.francisli.processing.restclient.*;
  *
@@ -85,20 +152,179 @@ import processing.core.*;
  * @param client RESTClient: any variable of type RESTClient
  */
 public class RESTClient {
+    /** int: when the request queue is full, wait until there is room for the new request.
+     * Requests made on the animation thread never wait; they are held by the
+     * client and queued from pre() once there is room. */
+    public static final int BLOCK = 0;
+    /** int: when the request queue is full, discard the oldest queued request */
+    public static final int DROP_OLDEST = 1;
+    /** int: when the request queue is full, throw a RejectedExecutionException */
+    public static final int FAIL = 2;
+
+    /** int: perform requests on a pool of platform threads (the default) */
+    public static final int THREAD_POOL = 0;
+    /** int: perform each request on its own virtual thread, on Java 21 or newer */
+    public static final int VIRTUAL_THREADS = 1;
+    /** int: multiplex all requests over a few non-blocking I/O threads */
+    public static final int ASYNC = 2;
+    /** int: multiplex all requests to the host over one HTTP/2 connection */
+    public static final int HTTP2 = 3;
+
+    static final double MAX_RETRY_TOKENS = 10;
+
     PApplet parent;
-    Method callbackMethod;
+    ResponseListener listener;
+    MethodHandle callbackMethod;
+    MethodHandle failureMethod;
+
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", new TimedSocketFactory(PlainConnectionSocketFactory.getSocketFactory()))
+            .register("https", new TimedSocketFactory(SSLConnectionSocketFactory.getSocketFactory()))
+            .build());
+    ClientStats stats = new ClientStats(this);
+    HttpServer statsServer;
+    long keepAliveDuration;
+    long idleConnectionTimeout;
+    ScheduledExecutorService scheduler;
+    ScheduledFuture<?> idleConnectionEvictor;
+    CloseableHttpClient httpClient;
+    CacheStorage cacheStorage;
+    ResourceFactory cacheResourceFactory;
+    AtomicLong cacheHits = new AtomicLong();
+    AtomicLong cacheMisses = new AtomicLong();
+    AtomicLong cacheRevalidations = new AtomicLong();
+    Engine engine;
+    LinkedHashMap<String, Header> headers = new LinkedHashMap<String, Header>();
+    volatile Header[] defaultHeaders = new Header[0];
+
+    ConnectionKeepAliveStrategy keepAliveStrategy = new ConnectionKeepAliveStrategy() {
+        public long getKeepAliveDuration(org.apache.http.HttpResponse response, HttpContext context) {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            if (keepAliveDuration > 0 && (duration <= 0 || duration > keepAliveDuration)) {
+                duration = keepAliveDuration;
+            }
+            return duration;
+        }
+    };
+
+    HttpRequestInterceptor defaultHeadersInterceptor = new HttpRequestInterceptor() {
+        public void process(org.apache.http.HttpRequest request, HttpContext context) {
+            for (Header header: defaultHeaders) {
+                if (!request.containsHeader(header.getName())) {
+                    request.addHeader(header);
+                }
+            }
+        }
+    };
 
-    CloseableHttpClient httpClient = HttpClientBuilder.create().build();
-    List<Header> headers = new ArrayList<Header>();
-    HashMap<HttpRequest, HttpResponse> requestMap = new HashMap<HttpRequest, HttpResponse>();
+    HttpRequestInterceptor contentEncodingInterceptor = new HttpRequestInterceptor() {
+        public void process(org.apache.http.HttpRequest request, HttpContext context) {
+            String encoding = acceptEncoding;
+            if (encoding != null && !request.containsHeader("Accept-Encoding")) {
+                request.addHeader("Accept-Encoding", encoding);
+            }
+            int threshold = requestCompressionThreshold;
+            if (threshold > 0 && request instanceof HttpEntityEnclosingRequest) {
+                HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+                HttpEntity entity = enclosing.getEntity();
+                if (entity != null && entity.getContentEncoding() == null && entity.getContentLength() > threshold) {
+                    enclosing.setEntity(new GzipCompressingEntity(entity));
+                }
+            }
+        }
+    };
+    ConcurrentLinkedQueue<HttpRequest> completedRequests = new ConcurrentLinkedQueue<HttpRequest>();
+    AtomicInteger completedCount = new AtomicInteger();
+    ConcurrentHashMap<String, HttpRequest> inFlightRequests = new ConcurrentHashMap<String, HttpRequest>();
+    Set<HttpRequest> outstandingRequests = Collections.newSetFromMap(new ConcurrentHashMap<HttpRequest, Boolean>());
+    double retryTokens = MAX_RETRY_TOKENS;
+    AtomicLong retryCount = new AtomicLong();
+    //// sorted longest prefix first, so the most specific limiter applies
+    volatile RateLimiter[] rateLimiters = new RateLimiter[0];
 
     HttpHost host, secureHost;
 
+    ExecutorService executor;
+    AtomicInteger activeCount = new AtomicInteger();
+    //// requests the animation thread could not queue without blocking, dispatched from pre()
+    ConcurrentLinkedQueue<Runnable> overflowRequests = new ConcurrentLinkedQueue<Runnable>();
+    volatile Thread animationThread;
+    Semaphore connectionPermits;
+
     /** boolean: set true to use SSL encryption */
     public boolean useSSL;
     /** boolean: set false to turn off logging information in the console */
     public boolean logging = false;
 
+    /** boolean: set true to complete the futures returned by GETAsync() and
+     * friends in pre() on the animation thread, with their response or their
+     * error, instead of on the thread that received the response. Futures of
+     * cancelled requests are cancelled right away. */
+    public boolean completeFuturesOnAnimationThread = false;
+
+    /** boolean: set true to read each response's content on the background
+     * thread before it is delivered. The connection is released right away
+     * and the content can be read any number of times until the callback
+     * returns, when a large response's temporary file is deleted. */
+    public boolean bufferResponses = false;
+    /** int: buffered content larger than this many bytes is kept in a
+     * temporary file instead of memory (default 1MB) */
+    public int responseMemoryLimit = 1024 * 1024;
+
+    /** String: the content encodings requested in the Accept-Encoding header,
+     * or null to request uncompressed responses (default "gzip, deflate, br").
+     * Compressed responses are decoded on the background thread when they are
+     * buffered, and otherwise as their content is read, so they can still be
+     * streamed. */
+    public String acceptEncoding = "gzip, deflate, br";
+    /** int: POST, PUT and PATCH bodies larger than this many bytes are sent gzip
+     * compressed, or 0 to never compress them. Only for servers that accept
+     * compressed requests. */
+    public int requestCompressionThreshold = 0;
+
+    /** int: how long to wait in milliseconds for a connection to the server
+     * to be established, or 0 to wait indefinitely (default) */
+    public int connectTimeout = 0;
+    /** int: how long to wait in milliseconds for data from the server once
+     * connected, or 0 to wait indefinitely (default) */
+    public int readTimeout = 0;
+    /** long: how long a request may take in milliseconds from start to
+     * finish, including retries, or 0 for no limit (default). Requests that
+     * run out of time are cancelled and fail with a TimeoutException. */
+    public long requestTimeout = 0;
+
+    /** int: the maximum number of times a request is attempted before it
+     * fails, including the first attempt (default 1, no retries). Only GET,
+     * DELETE and PUT requests are retried, unless retryUnsafeRequests is set. */
+    public int maxAttempts = 1;
+    /** long: the longest wait in milliseconds before the first retry,
+     * doubling with each further retry up to maxRetryDelay. The actual wait
+     * is chosen at random up to this limit, so clients don't retry in step. */
+    public long retryDelay = 100;
+    /** long: the longest wait in milliseconds before any retry */
+    public long maxRetryDelay = 10000;
+    /** int[]: response status codes that are retried, along with connection errors */
+    public int[] retryStatusCodes = { 429, 502, 503, 504 };
+    /** boolean: set true to also retry POST and PATCH requests, which may not be safe to repeat */
+    public boolean retryUnsafeRequests = false;
+    /** float: the fraction of requests that may be retried over time
+     * (default 0.1), so retries can't multiply the load on a failing server */
+    public float retryBudget = 0.1f;
+
+    /** boolean: set true to share a single network call between identical GET
+     * requests that are in flight at the same time. Every request still gets
+     * its own callback, with a copy of the buffered response. */
+    public boolean coalesceRequests = false;
+
+    /** int: the maximum number of responses delivered per frame, or 0 for no limit.
+     * Responses beyond the limit are delivered in later frames. */
+    public int maxCallbacksPerFrame = 0;
+    /** float: the maximum time in milliseconds spent delivering responses per
+     * frame, or 0 for no limit. At least one response is delivered each frame. */
+    public float maxCallbackMillisPerFrame = 0;
+
+    long callbackNanos;
+
     /** boolean: set true to sign requests using OAuth */
     public boolean useOAuth;
     /** String: the OAuth consumer key assigned to you for your app */
@@ -110,6 +336,8 @@ public class RESTClient {
     /** String: the OAuth access token secret for a user of your app*/
     public String oauthAccessTokenSecret;
 
+    volatile OAuthSigner oauthSigner;
+
     public RESTClient(PApplet parent, String hostname) {
         this(parent, hostname, 80, 443);
     }
@@ -127,28 +355,472 @@ public class RESTClient {
      * @param securePort int: The port to use for secure connections (typically 443)
      */
     public RESTClient(PApplet parent, String hostname, int port, int securePort) {
+        this(parent, hostname, port, securePort, THREAD_POOL);
+    }
+
+    /** Returns a new RESTClient instance that connects to the specified
+     * host and ports, performing requests with the specified engine.
+     * VIRTUAL_THREADS requires Java 21 or newer; on older versions of Java
+     * the client falls back to THREAD_POOL. ASYNC performs all requests on
+     * one or two non-blocking I/O threads and buffers each response in memory,
+     * then decodes it and runs the background() hook of its request on a
+     * separate response thread. HTTP2 works like ASYNC, but sends every request to the host
+     * as a stream on a single HTTP/2 connection, negotiated with ALPN for
+     * secure connections or with prior knowledge otherwise; the server must
+     * support HTTP/2. Its streams in flight are limited by setMaxConnections(),
+     * and request bodies over 64KB are streamed from a worker thread.
+     *
+     * @param engine int: THREAD_POOL, VIRTUAL_THREADS, ASYNC or HTTP2
+     */
+    public RESTClient(PApplet parent, String hostname, int port, int securePort, int engine) {
         this.parent = parent;
+        //// sketches usually create their clients in setup(), on the animation thread
+        animationThread = Thread.currentThread();
         parent.registerMethod("dispose", this);
         parent.registerMethod("pre", this);
-        try {
-            callbackMethod = parent.getClass().getMethod("responseReceived", new Class[] { HttpRequest.class, HttpResponse.class });
-        } catch (Exception e) {
-            if (logging) {
-              System.err.println("RESTClient: No responseReceived callback method found in your sketch!");
+        if (parent instanceof ResponseListener) {
+            listener = (ResponseListener) parent;
+        } else {
+            try {
+                Method method = parent.getClass().getMethod("responseReceived", new Class[] { HttpRequest.class, HttpResponse.class });
+                method.setAccessible(true);
+                callbackMethod = MethodHandles.lookup().unreflect(method).bindTo(parent);
+            } catch (Exception e) {
+                if (logging) {
+                  System.err.println("RESTClient: No responseReceived callback method found in your sketch!");
+                }
             }
+            try {
+                Method method = parent.getClass().getMethod("requestFailed", new Class[] { HttpRequest.class, Exception.class });
+                method.setAccessible(true);
+                failureMethod = MethodHandles.lookup().unreflect(method).bindTo(parent);
+            } catch (Exception e) { }
         }
         host = new HttpHost(hostname, port, "http");
         secureHost = new HttpHost(hostname, securePort, "https");
+        httpClient = buildHttpClient();
+        if (engine == ASYNC) {
+            try {
+                this.engine = new AsyncEngine(this);
+            } catch (Exception e) {
+                System.err.println("RESTClient: Unable to start the async engine, using a thread pool instead");
+            }
+        } else if (engine == HTTP2) {
+            try {
+                this.engine = new Http2Engine(this);
+            } catch (Exception e) {
+                System.err.println("RESTClient: Unable to start the HTTP/2 engine, using a thread pool instead");
+            }
+        } else if (engine == VIRTUAL_THREADS) {
+            executor = newVirtualThreadExecutor();
+            if (executor == null) {
+                System.err.println("RESTClient: Virtual threads require Java 21 or newer, using a thread pool instead");
+            } else {
+                //// HttpClient waits for pooled connections inside synchronized blocks, which pins
+                //// virtual threads to their carriers, so hold them back until a connection is free
+                connectionPermits = new Semaphore(connectionManager.getDefaultMaxPerRoute());
+            }
+        }
+        if (executor == null) {
+            setThreadPool(8, 1000, BLOCK);
+        }
+        setMaxConnectionsPerRoute(8);
+        setMaxConnections(20);
+    }
+
+    static ExecutorService newVirtualThreadExecutor() {
+        //// look the factory up reflectively so the library still runs on older versions of Java
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
     }
 
-    /** Sets a new HTTP header that will be applied to every outgoing request.
+    /** Returns true if this client performs each request on its own virtual thread.
+     *
+     * @return boolean
+     */
+    public boolean usesVirtualThreads() {
+        return engine == null && !(executor instanceof ThreadPoolExecutor);
+    }
+
+    /** Sets a listener that receives all responses for this client in place
+     * of the responseReceived() callback in your sketch. Requests with their
+     * own listener are still routed to it.
+     *
+     * @param listener ResponseListener: the listener, or null to use the sketch callback again
+     */
+    public void setResponseListener(ResponseListener listener) {
+        this.listener = listener;
+    }
+
+    /** Configures the pool of background worker threads that perform requests.
+     * Requests beyond the number of threads wait in a queue; once the queue is
+     * full the rejection policy decides what happens to new requests. Requests
+     * already queued on the previous pool are allowed to finish. Calling this
+     * on a client using VIRTUAL_THREADS switches it to a thread pool.
+     *
+     * @param threads int: the maximum number of requests performed at once (default 8)
+     * @param queueCapacity int: the maximum number of requests waiting for a thread (default 1000)
+     * @param rejectionPolicy int: BLOCK, DROP_OLDEST or FAIL (default BLOCK)
+     */
+    public void setThreadPool(int threads, int queueCapacity, int rejectionPolicy) {
+        RejectedExecutionHandler handler;
+        switch (rejectionPolicy) {
+            case BLOCK:
+                handler = new BlockPolicy();
+                break;
+            case DROP_OLDEST:
+                handler = new DropOldestPolicy();
+                break;
+            case FAIL:
+                handler = new ThreadPoolExecutor.AbortPolicy();
+                break;
+            default:
+                throw new IllegalArgumentException("RESTClient: Unknown rejection policy " + rejectionPolicy);
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new WorkerThreadFactory("RESTClient-worker-"), handler);
+        pool.allowCoreThreadTimeOut(true);
+        ExecutorService previous = executor;
+        executor = pool;
+        connectionPermits = null;
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /** Returns the number of requests waiting for a worker thread, or for a
+     * connection when using the ASYNC engine. Always 0 when using virtual
+     * threads, since every request gets its own thread.
+     *
+     * @return int
+     */
+    public int getQueuedRequestCount() {
+        if (engine != null) {
+            return engine.getQueuedRequestCount();
+        }
+        if (executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) executor).getQueue().size() + overflowRequests.size();
+        }
+        return 0;
+    }
+
+    /** Returns the number of requests currently being performed.
+     *
+     * @return int
+     */
+    public int getActiveRequestCount() {
+        return activeCount.get();
+    }
+
+    /** Sets the maximum number of simultaneous connections to the server,
+     * applied to both secure and unsecured connections. Requests beyond this
+     * limit wait for a connection to be released (default 8).
+     *
+     * @param max int: the maximum number of connections per route
+     */
+    public void setMaxConnectionsPerRoute(int max) {
+        connectionManager.setDefaultMaxPerRoute(max);
+        connectionManager.setMaxPerRoute(new HttpRoute(host), max);
+        connectionManager.setMaxPerRoute(new HttpRoute(secureHost, null, true), max);
+        if (connectionPermits != null) {
+            connectionPermits = new Semaphore(max);
+        }
+        if (engine != null) {
+            engine.setMaxConnectionsPerRoute(max);
+        }
+    }
+
+    /** Sets the maximum number of connections kept open by this client in
+     * total (default 20). With the HTTP2 engine, which keeps one connection
+     * per host, this is the maximum number of requests in flight instead.
+     *
+     * @param max int: the maximum number of connections
+     */
+    public void setMaxConnections(int max) {
+        connectionManager.setMaxTotal(max);
+        if (engine != null) {
+            engine.setMaxConnections(max);
+        }
+    }
+
+    /** Sets how long an idle connection is kept alive for reuse. If the server
+     * sends a shorter Keep-Alive timeout, the server's value is used instead.
+     * By default connections are kept alive for as long as the server allows.
+     *
+     * @param millis long: the maximum keep-alive duration in milliseconds, or 0 to follow the server
+     */
+    public void setKeepAliveDuration(long millis) {
+        keepAliveDuration = millis;
+    }
+
+    /** Closes pooled connections that have been idle for longer than the
+     * specified time, along with connections whose keep-alive has expired.
+     * Eviction runs in the background at most once a second.
+     *
+     * @param millis long: the idle time in milliseconds, or 0 to only evict expired connections
+     */
+    public void setIdleConnectionTimeout(long millis) {
+        idleConnectionTimeout = millis;
+        if (idleConnectionEvictor == null) {
+            long period = millis > 0 ? Math.min(millis, 1000) : 1000;
+            idleConnectionEvictor = getScheduler().scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    connectionManager.closeExpiredConnections();
+                    if (idleConnectionTimeout > 0) {
+                        connectionManager.closeIdleConnections(idleConnectionTimeout, TimeUnit.MILLISECONDS);
+                    }
+                    if (engine != null) {
+                        engine.closeIdleConnections(idleConnectionTimeout);
+                    }
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Sets how long a pooled connection may sit unused before it is checked
+     * for staleness when it is next leased (default 2000). The ASYNC engine
+     * notices closed connections as they happen and does not need this check.
+     *
+     * @param millis int: the inactivity period in milliseconds, or 0 to disable checks
+     */
+    public void setValidateAfterInactivity(int millis) {
+        connectionManager.setValidateAfterInactivity(millis);
+    }
+
+    /** Returns measurements of the requests this client has made, including
+     * latency histograms, status codes, errors and retries for each host and
+     * HTTP method, and the state of the connection pool.
+     *
+     * @return ClientStats
+     */
+    public ClientStats getStats() {
+        return stats;
+    }
+
+    /** Serves the client's measurements as plain text on the specified port
+     * of this computer, at http://localhost:port/metrics, for monitoring tools
+     * to collect.
+     *
+     * @param port int: the port to listen on
+     */
+    public void startStatsServer(int port) throws IOException {
+        if (statsServer != null) {
+            statsServer.stop(0);
+        }
+        statsServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        statsServer.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = stats.toText().getBytes(Consts.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        statsServer.setExecutor(null);
+        statsServer.start();
+    }
+
+    /** Limits how fast requests are sent to the server, pacing them to at
+     * most the specified number per second, with at most maxInFlight waiting
+     * for a response at the same time. Requests over the limit are queued, not
+     * rejected. The limiter also backs off when a response carries a
+     * Retry-After header or runs out its X-RateLimit-Remaining quota.
+     *
+     * @param requestsPerSecond float: the maximum request rate, or 0 for no rate limit
+     * @param maxInFlight int: the maximum number of requests in flight, or 0 for no limit
+     */
+    public void setRateLimit(float requestsPerSecond, int maxInFlight) {
+        setRateLimit("/", requestsPerSecond, maxInFlight);
+    }
+
+    /** Limits requests to paths under the specified prefix, matching whole
+     * path segments, so "/search" covers "/search/users" but not
+     * "/searchable". Each request is paced by the limit with the longest
+     * matching prefix only.
+     *
+     * @param pathPrefix String: the path prefix the limit applies to, such as "/search"
+     */
+    public void setRateLimit(String pathPrefix, float requestsPerSecond, int maxInFlight) {
+        synchronized (this) {
+            for (RateLimiter limiter: rateLimiters) {
+                if (limiter.prefix.equals(pathPrefix)) {
+                    limiter.setLimits(requestsPerSecond, maxInFlight);
+                    return;
+                }
+            }
+            ArrayList<RateLimiter> limiters = new ArrayList<RateLimiter>(Arrays.asList(rateLimiters));
+            limiters.add(new RateLimiter(this, pathPrefix, requestsPerSecond, maxInFlight));
+            Collections.sort(limiters, new Comparator<RateLimiter>() {
+                public int compare(RateLimiter a, RateLimiter b) {
+                    return b.prefix.length() - a.prefix.length();
+                }
+            });
+            rateLimiters = limiters.toArray(new RateLimiter[limiters.size()]);
+        }
+    }
+
+    /** Returns the number of requests waiting for the rate limit.
+     *
+     * @return int
+     */
+    public int getRateLimitQueueLength() {
+        int length = 0;
+        for (RateLimiter limiter: rateLimiters) {
+            length += limiter.getQueueLength();
+        }
+        return length;
+    }
+
+    /** Returns the signer for the current OAuth credentials, replacing it
+     * if the oauth fields have changed since it was created. */
+    OAuthSigner getOAuthSigner() {
+        OAuthSigner signer = oauthSigner;
+        if (signer == null || !signer.matches(oauthConsumerKey, oauthConsumerSecret, oauthAccessToken, oauthAccessTokenSecret)) {
+            signer = new OAuthSigner(oauthConsumerKey, oauthConsumerSecret, oauthAccessToken, oauthAccessTokenSecret);
+            oauthSigner = signer;
+        }
+        return signer;
+    }
+
+    ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(1, new WorkerThreadFactory("RESTClient-scheduler-"));
+            pool.setRemoveOnCancelPolicy(true);
+            scheduler = pool;
+        }
+        return scheduler;
+    }
+
+    /** Caches responses in memory, up to the specified total size, and
+     * serves them again without contacting the server while they are fresh.
+     * Once stale, cached responses with an ETag or Last-Modified header are
+     * revalidated with a conditional request, and reused if the server
+     * replies 304 Not Modified. The least recently used responses are
+     * evicted first. Not supported by the ASYNC or HTTP2 engines.
+     *
+     * @param maxBytes int: the maximum total size of cached response bodies
+     */
+    public void enableCache(int maxBytes) {
+        enableCache(maxBytes, null);
+    }
+
+    /** Caches responses as in enableCache(maxBytes), but stores their bodies
+     * in files in the specified folder of the sketch instead of in memory.
+     * The cache lasts as long as the client: its files are deleted by
+     * dispose(), and any left by a previous run are deleted here.
+     *
+     * @param maxBytes int: the maximum total size of cached response bodies
+     * @param folder String: folder for cached response bodies, relative to the sketch folder
+     */
+    public void enableCache(int maxBytes, String folder) {
+        if (engine != null) {
+            System.err.println("RESTClient: The response cache is not supported by the ASYNC or HTTP2 engines");
+            return;
+        }
+        CacheStorage previousStorage = cacheStorage;
+        cacheStorage = new CacheStorage(maxBytes);
+        if (folder != null) {
+            File directory = new File(parent.sketchPath(folder));
+            directory.mkdirs();
+            cacheResourceFactory = new CacheStorage.FileFactory(directory);
+        } else {
+            cacheResourceFactory = new HeapResourceFactory();
+        }
+        CloseableHttpClient previous = httpClient;
+        httpClient = buildHttpClient();
+        try {
+            previous.close();
+        } catch (IOException ioe) { }
+        if (previousStorage != null) {
+            previousStorage.clear();
+        }
+    }
+
+    /** Returns the number of responses served from the cache without contacting the server.
+     *
+     * @return long
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /** Returns the number of responses that could not be served from the cache.
+     *
+     * @return long
+     */
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    /** Returns the number of stale cached responses the server confirmed were unchanged.
+     *
+     * @return long
+     */
+    public long getCacheRevalidations() {
+        return cacheRevalidations.get();
+    }
+
+    void countCacheResponse(HttpCacheContext context) {
+        CacheResponseStatus status = context.getCacheResponseStatus();
+        if (status == CacheResponseStatus.CACHE_HIT) {
+            cacheHits.incrementAndGet();
+        } else if (status == CacheResponseStatus.VALIDATED) {
+            cacheRevalidations.incrementAndGet();
+        } else if (status != null) {
+            cacheMisses.incrementAndGet();
+        }
+    }
+
+    CloseableHttpClient buildHttpClient() {
+        HttpClientBuilder builder = HttpClientBuilder.create();
+        if (cacheStorage != null) {
+            builder = CachingHttpClientBuilder.create()
+                    .setHttpCacheStorage(cacheStorage)
+                    .setResourceFactory(cacheResourceFactory)
+                    .setCacheConfig(CacheConfig.custom()
+                            .setSharedCache(false)
+                            .setMaxObjectSize(Math.max(cacheStorage.maxBytes / 4, 1))
+                            .setHeuristicCachingEnabled(false)
+                            .build());
+        }
+        return builder
+                .setConnectionManager(connectionManager)
+                .setConnectionManagerShared(true)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .addInterceptorFirst(defaultHeadersInterceptor)
+                .addInterceptorFirst(contentEncodingInterceptor)
+                .disableContentCompression()
+                .build();
+    }
+
+    /** Sets a new HTTP header that will be applied to every outgoing request,
+     * replacing any header previously set with the same name.
      *
      * @param key
      * @param value
      */
     public void setHeader(String key, String value) {
-        headers.add(new BasicHeader(key, value));
-        httpClient = HttpClientBuilder.create().setDefaultHeaders(headers).build();
+        synchronized(headers) {
+            headers.put(key.toLowerCase(Locale.ROOT), new BasicHeader(key, value));
+            defaultHeaders = headers.values().toArray(new Header[headers.size()]);
+        }
+    }
+
+    /** Removes an HTTP header previously set with setHeader().
+     *
+     * @param key
+     */
+    public void removeHeader(String key) {
+        synchronized(headers) {
+            headers.remove(key.toLowerCase(Locale.ROOT));
+            defaultHeaders = headers.values().toArray(new Header[headers.size()]);
+        }
     }
 
     /** Sets the HTTP Authorization header with a Bearer token value. Typically used with an OAuth2 API access token.
@@ -163,38 +835,115 @@ public class RESTClient {
      * @exclude
      */
     public void dispose() {
+        for (HttpRequest request: outstandingRequests) {
+            request.cancel();
+        }
+        overflowRequests.clear();
+        executor.shutdownNow();
+        if (engine != null) {
+            engine.close();
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (statsServer != null) {
+            statsServer.stop(0);
+        }
         try {
             httpClient.close();
         } catch (IOException ioe) { }
+        connectionManager.shutdown();
+        if (cacheStorage != null) {
+            cacheStorage.clear();
+        }
     }
 
     /**
      * @exclude
      */
     public void pre() throws Throwable {
-        HashMap<HttpRequest, HttpResponse> requestMapClone;
-        synchronized(this) {
-            requestMapClone = (HashMap<HttpRequest, HttpResponse>)requestMap.clone();
-        }
-        for (HttpRequest request: requestMapClone.keySet()) {
-            HttpResponse response = requestMapClone.get(request);
-            request.pre(response);
-            if (callbackMethod != null) {
-              try {
-                  callbackMethod.invoke(parent, new Object[] { request, response });
-              } catch (IllegalAccessException ex) {
-
-              } catch (IllegalArgumentException ex) {
-
-              } catch (InvocationTargetException ex) {
-                  throw ex.getCause();
-              }
+        animationThread = Thread.currentThread();
+        if (!overflowRequests.isEmpty()) {
+            dispatchOverflow();
+        }
+        int count = completedCount.get();
+        if (count == 0) {
+            callbackNanos = 0;
+            return;
+        }
+        //// only deliver what has arrived so far, anything newer waits for the next frame
+        if (maxCallbacksPerFrame > 0 && count > maxCallbacksPerFrame) {
+            count = maxCallbacksPerFrame;
+        }
+        long start = System.nanoTime();
+        long deadline = start + (long) (maxCallbackMillisPerFrame * 1000000);
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && maxCallbackMillisPerFrame > 0 && System.nanoTime() - deadline >= 0) {
+                break;
+            }
+            HttpRequest request = completedRequests.poll();
+            completedCount.decrementAndGet();
+            HttpResponse response = request.response;
+            if (response == null) {
+                if (request.future != null) {
+                    request.future.completeExceptionally(request.error);
+                } else {
+                    requestFailed(request, request.error);
+                }
+                continue;
             }
-            ((CloseableHttpResponse) response.response).close();
-            synchronized(this) {
-                requestMap.remove(request);
+            try {
+                request.pre(response);
+                if (request.future != null) {
+                    if (!request.future.complete(response)) {
+                        response.release();
+                    }
+                } else if (request.listener != null) {
+                    request.listener.responseReceived(request, response);
+                } else if (listener != null) {
+                    listener.responseReceived(request, response);
+                } else if (callbackMethod != null) {
+                    callbackMethod.invokeExact(request, response);
+                }
+            } finally {
+                response.close();
+                if (request.future == null) {
+                    response.release();
+                }
+                request.releaseConnection();
             }
         }
+        callbackNanos = System.nanoTime() - start;
+    }
+
+    void requestFailed(HttpRequest request, Exception error) throws Throwable {
+        if (request.listener != null) {
+            request.listener.requestFailed(request, error);
+        } else if (listener != null) {
+            listener.requestFailed(request, error);
+        } else if (failureMethod != null) {
+            failureMethod.invokeExact(request, error);
+        } else {
+            System.err.println("RESTClient: An error occurred- ");
+            error.printStackTrace();
+        }
+    }
+
+    /** Returns the number of responses waiting to be delivered in pre().
+     *
+     * @return int
+     */
+    public int getPendingResponseCount() {
+        return completedCount.get();
+    }
+
+    /** Returns the time in milliseconds spent delivering responses during the
+     * most recent frame.
+     *
+     * @return float
+     */
+    public float getCallbackMillis() {
+        return callbackNanos / 1000000f;
     }
 
     /**
@@ -216,7 +965,7 @@ public class RESTClient {
      */
     public HttpRequest GET(String path, Map params) {
         HttpRequest request = new GetRequest(this, path, params);
-        request.start();
+        dispatch(request);
         return request;
     }
 
@@ -239,7 +988,7 @@ public class RESTClient {
      */
     public HttpRequest DELETE(String path, Map params) {
         HttpRequest request = new DeleteRequest(this, path, params);
-        request.start();
+        dispatch(request);
         return request;
     }
 
@@ -268,7 +1017,23 @@ public class RESTClient {
      */
     public HttpRequest POST(String path, Map params, Map files) {
         HttpRequest request = new PostRequest(this, path, params, files);
-        request.start();
+        dispatch(request);
+        return request;
+    }
+
+    /**
+     * Performs a POST request, streaming the specified body to the server as
+     * is. The body may be a byte[], String, File, Path, InputStream,
+     * ReadableByteChannel or ContentProducer, and is never loaded into memory
+     * as a whole. Bodies of unknown length are sent with chunked transfer
+     * encoding. Streams and channels can only be sent once.
+     *
+     * @param contentType String: the MIME type of the body, such as "application/octet-stream"
+     * @param body Object: the content to send
+     */
+    public HttpRequest POSTBody(String path, String contentType, Object body) {
+        HttpRequest request = new PostRequest(this, path, contentType, body);
+        dispatch(request);
         return request;
     }
 
@@ -297,7 +1062,23 @@ public class RESTClient {
      */
     public HttpRequest PUT(String path, Map params, Map files) {
         HttpRequest request = new PutRequest(this, path, params, files);
-        request.start();
+        dispatch(request);
+        return request;
+    }
+
+    /**
+     * Performs a PUT request, streaming the specified body to the server as
+     * is. The body may be a byte[], String, File, Path, InputStream,
+     * ReadableByteChannel or ContentProducer, and is never loaded into memory
+     * as a whole. Bodies of unknown length are sent with chunked transfer
+     * encoding. Streams and channels can only be sent once.
+     *
+     * @param contentType String: the MIME type of the body, such as "application/octet-stream"
+     * @param body Object: the content to send
+     */
+    public HttpRequest PUTBody(String path, String contentType, Object body) {
+        HttpRequest request = new PutRequest(this, path, contentType, body);
+        dispatch(request);
         return request;
     }
 
@@ -326,23 +1107,483 @@ public class RESTClient {
      */
     public HttpRequest PATCH(String path, Map params, Map files) {
         HttpRequest request = new PatchRequest(this, path, params, files);
-        request.start();
+        dispatch(request);
+        return request;
+    }
+
+    /**
+     * Performs a PATCH request, streaming the specified body to the server as
+     * is. The body may be a byte[], String, File, Path, InputStream,
+     * ReadableByteChannel or ContentProducer, and is never loaded into memory
+     * as a whole. Bodies of unknown length are sent with chunked transfer
+     * encoding. Streams and channels can only be sent once.
+     *
+     * @param contentType String: the MIME type of the body, such as "application/octet-stream"
+     * @param body Object: the content to send
+     */
+    public HttpRequest PATCHBody(String path, String contentType, Object body) {
+        HttpRequest request = new PatchRequest(this, path, contentType, body);
+        dispatch(request);
         return request;
     }
 
+    /**
+     * Returns a new, empty batch of requests. Add requests to the batch, then
+     * start it to perform them together and receive all of their responses at
+     * once, in order.
+     *
+     * @return RequestBatch
+     */
+    public RequestBatch batch() {
+        return new RequestBatch(this);
+    }
+
+    /**
+     * Starts walking a collection that is split across pages, following the
+     * rel="next" URL in each page's Link header. The returned Paginator
+     * fetches pages in the background and returns them in order, starting
+     * when it is first read, so its limits can be set beforehand.
+     *
+     * @param path String: an absolute path to the first page on the server
+     * @return Paginator
+     */
+    public Paginator paginate(String path) {
+        return paginate(path, null);
+    }
+
+    /**
+     * @param params HashMap: a collection of key/value pairs for the first page
+     */
+    public Paginator paginate(String path, Map params) {
+        return new Paginator(this, path, params);
+    }
+
+    /**
+     * Performs a GET request like GET(), but instead of invoking the
+     * responseReceived() callback returns a future that completes with the
+     * response. The content of the response is buffered so it can be read on
+     * any thread, in a temporary file if it is large, so call dispose() on the
+     * response once you are done with it. Futures complete on the thread that received the
+     * response unless completeFuturesOnAnimationThread is set, and complete
+     * exceptionally if the request fails.
+     *
+     * @param path String: an absolute path to file or script on the server
+     * @return CompletableFuture
+     */
+    public CompletableFuture<HttpResponse> GETAsync(String path) {
+        return GETAsync(path, null);
+    }
+
+    /**
+     * @param params HashMap: a collection of key/value pairs
+     */
+    public CompletableFuture<HttpResponse> GETAsync(String path, Map params) {
+        return submit(new GetRequest(this, path, params));
+    }
+
+    /**
+     * Performs a DELETE request like DELETE(), returning a future that
+     * completes with the response instead of invoking responseReceived().
+     *
+     * @param path String: an absolute path to file or script on the server
+     * @return CompletableFuture
+     */
+    public CompletableFuture<HttpResponse> DELETEAsync(String path) {
+        return DELETEAsync(path, null);
+    }
+
+    /**
+     * @param params HashMap: a collection of key/value pairs
+     */
+    public CompletableFuture<HttpResponse> DELETEAsync(String path, Map params) {
+        return submit(new DeleteRequest(this, path, params));
+    }
+
+    /**
+     * Performs a POST request like POST(), returning a future that completes
+     * with the response instead of invoking responseReceived().
+     *
+     * @param path String: an absolute path to a file or script on the server
+     * @return CompletableFuture
+     */
+    public CompletableFuture<HttpResponse> POSTAsync(String path) {
+        return POSTAsync(path, null, null);
+    }
+
+    /**
+     * @param params HashMap: a collection of key/value parameters to send to the server
+     */
+    public CompletableFuture<HttpResponse> POSTAsync(String path, Map params) {
+        return POSTAsync(path, params, null);
+    }
+
+    /**
+     * @param files HashMap: a collection of key/file pairs to send to the server
+     */
+    public CompletableFuture<HttpResponse> POSTAsync(String path, Map params, Map files) {
+        return submit(new PostRequest(this, path, params, files));
+    }
+
+    /**
+     * Performs a PUT request like PUT(), returning a future that completes
+     * with the response instead of invoking responseReceived().
+     *
+     * @param path String: an absolute path to a file or script on the server
+     * @return CompletableFuture
+     */
+    public CompletableFuture<HttpResponse> PUTAsync(String path) {
+        return PUTAsync(path, null, null);
+    }
+
+    /**
+     * @param params HashMap: a collection of key/value parameters to send to the server
+     */
+    public CompletableFuture<HttpResponse> PUTAsync(String path, Map params) {
+        return PUTAsync(path, params, null);
+    }
+
+    /**
+     * @param files HashMap: a collection of key/file pairs to send to the server
+     */
+    public CompletableFuture<HttpResponse> PUTAsync(String path, Map params, Map files) {
+        return submit(new PutRequest(this, path, params, files));
+    }
+
+    /**
+     * Performs a PATCH request like PATCH(), returning a future that completes
+     * with the response instead of invoking responseReceived().
+     *
+     * @param path String: an absolute path to a file or script on the server
+     * @return CompletableFuture
+     */
+    public CompletableFuture<HttpResponse> PATCHAsync(String path) {
+        return PATCHAsync(path, null, null);
+    }
+
+    /**
+     * @param params HashMap: a collection of key/value parameters to send to the server
+     */
+    public CompletableFuture<HttpResponse> PATCHAsync(String path, Map params) {
+        return PATCHAsync(path, params, null);
+    }
+
+    /**
+     * @param files HashMap: a collection of key/file pairs to send to the server
+     */
+    public CompletableFuture<HttpResponse> PATCHAsync(String path, Map params, Map files) {
+        return submit(new PatchRequest(this, path, params, files));
+    }
+
+    CompletableFuture<HttpResponse> submit(HttpRequest request) {
+        request.future = new CompletableFuture<HttpResponse>();
+        dispatch(request);
+        return request.future;
+    }
+
+    void dispatch(final HttpRequest request) {
+        outstandingRequests.add(request);
+        long timeout = request.requestTimeout >= 0 ? request.requestTimeout : requestTimeout;
+        if (timeout > 0) {
+            final long millis = timeout;
+            request.timeoutTimer = getScheduler().schedule(new Runnable() {
+                public void run() {
+                    request.abort(new TimeoutException("RESTClient: Request timed out after " + millis + "ms"));
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+        if (coalesceRequests && request.future == null && coalesce(request)) {
+            return;
+        }
+        if (maxAttempts > 1) {
+            synchronized (retryCount) {
+                retryTokens = Math.min(MAX_RETRY_TOKENS, retryTokens + retryBudget);
+            }
+        }
+        try {
+            send(request);
+        } catch (RuntimeException e) {
+            request.finish();
+            throw e;
+        }
+    }
+
+    void send(HttpRequest request) {
+        request.queuedNanos = System.nanoTime();
+        RateLimiter limiter = getRateLimiter(request);
+        if (limiter != null) {
+            limiter.submit(request);
+            return;
+        }
+        execute(request);
+    }
+
+    void execute(HttpRequest request) {
+        if (engine != null) {
+            engine.execute(request);
+        } else if (!overflowRequests.isEmpty() && Thread.currentThread() == animationThread) {
+            //// stay in order behind the requests already waiting for room in the queue
+            overflowRequests.add(request);
+        } else {
+            executor.execute(request);
+        }
+    }
+
+    /** Moves requests the animation thread could not queue into the worker
+     * queue, as far as there is room for them. */
+    void dispatchOverflow() {
+        if (!(executor instanceof ThreadPoolExecutor)) {
+            return;
+        }
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+        Runnable request;
+        while ((request = overflowRequests.peek()) != null && pool.getQueue().offer(request)) {
+            overflowRequests.poll();
+            //// idle workers time out, so make sure one is running to take the request
+            pool.prestartCoreThread();
+        }
+    }
+
+    /** Schedules the request to be sent again if the response or error is
+     * worth retrying and the retry budget allows it. */
+    boolean retry(final HttpRequest request, org.apache.http.HttpResponse response, Exception error) {
+        if (request.attempt >= maxAttempts || !isRetryable(request.request)) {
+            return false;
+        }
+        long retryAfter = -1;
+        if (response != null) {
+            int status = response.getStatusLine().getStatusCode();
+            boolean retryable = false;
+            for (int code: retryStatusCodes) {
+                retryable |= code == status;
+            }
+            if (!retryable) {
+                return false;
+            }
+            retryAfter = RateLimiter.parseRetryAfter(response.getFirstHeader("Retry-After"));
+        } else if (!(error instanceof IOException)) {
+            return false;
+        }
+        synchronized (retryCount) {
+            if (retryTokens < 1) {
+                return false;
+            }
+            retryTokens -= 1;
+        }
+        long backoff = Math.min(maxRetryDelay, retryDelay << Math.min(request.attempt - 1, 30));
+        long delay = Math.max((long) (ThreadLocalRandom.current().nextDouble() * backoff), retryAfter);
+        //// count the attempt before scheduling it, since it may run and fail again right away
+        request.attempt++;
+        try {
+            getScheduler().schedule(new Runnable() {
+                public void run() {
+                    try {
+                        send(request);
+                    } catch (RuntimeException e) {
+                        request.failed(e);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            request.attempt--;
+            return false;
+        }
+        retryCount.incrementAndGet();
+        stats.recordRetry(request);
+        if (logging) {
+            PApplet.println("RESTClient: Retrying " + request.request.getRequestLine() + " in " + delay + "ms");
+        }
+        return true;
+    }
+
+    boolean isRetryable(org.apache.http.HttpRequest request) {
+        String method = request.getRequestLine().getMethod();
+        if (!retryUnsafeRequests && !method.equals("GET") && !method.equals("DELETE") && !method.equals("PUT")) {
+            return false;
+        }
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            return entity == null || entity.isRepeatable();
+        }
+        return true;
+    }
+
+    RateLimiter getRateLimiter(HttpRequest request) {
+        RateLimiter[] limiters = rateLimiters;
+        if (limiters.length == 0) {
+            return null;
+        }
+        String path = request.request instanceof HttpUriRequest
+                ? ((HttpUriRequest) request.request).getURI().getRawPath()
+                : request.request.getRequestLine().getUri();
+        for (RateLimiter limiter: limiters) {
+            if (limiter.matches(path == null ? "/" : path)) {
+                return limiter;
+            }
+        }
+        return null;
+    }
+
+    /** Returns true if the request joined an identical request already in
+     * flight, otherwise registers it for others to join. */
+    boolean coalesce(HttpRequest request) {
+        if (!"GET".equals(request.request.getRequestLine().getMethod())) {
+            return false;
+        }
+        //// the key needs the final URI, so build the request now
+        try {
+            request.ensureBuilt();
+        } catch (IOException e) {
+            return false;
+        }
+        RequestLine line = request.request.getRequestLine();
+        StringBuilder key = new StringBuilder();
+        key.append(request.host.toURI()).append(' ').append(line.getUri());
+        for (Header header: request.request.getAllHeaders()) {
+            key.append('\n').append(header.getName().toLowerCase(Locale.ROOT)).append(": ").append(header.getValue());
+        }
+        request.coalesceKey = key.toString();
+        request.followers = new ArrayList<HttpRequest>();
+        while (true) {
+            HttpRequest leader = inFlightRequests.putIfAbsent(request.coalesceKey, request);
+            if (leader == null) {
+                return false;
+            }
+            synchronized (leader) {
+                //// a leader that has already completed no longer takes followers
+                if (leader.followers != null) {
+                    leader.followers.add(request);
+                    return true;
+                }
+            }
+            inFlightRequests.remove(request.coalesceKey, leader);
+        }
+    }
+
+    /** Sends again the followers of a leader that was cancelled or timed out.
+     * The first still waiting becomes the new leader and the rest follow it. */
+    void redispatch(List<HttpRequest> followers) {
+        for (HttpRequest follower: followers) {
+            if (!outstandingRequests.contains(follower) || coalesce(follower)) {
+                continue;
+            }
+            try {
+                send(follower);
+            } catch (RuntimeException e) {
+                follower.fail(e);
+            }
+        }
+    }
+
+    List<HttpRequest> detachFollowers(HttpRequest request) {
+        if (request.coalesceKey == null) {
+            return null;
+        }
+        inFlightRequests.remove(request.coalesceKey, request);
+        List<HttpRequest> followers;
+        synchronized (request) {
+            followers = request.followers;
+            request.followers = null;
+        }
+        return followers == null || followers.isEmpty() ? null : followers;
+    }
+
     HttpHost getHost() {
         return useSSL ? secureHost : host;
     }
 
     void put(HttpRequest request, HttpResponse response) {
-        synchronized(this) {
-            requestMap.put(request, response);
-        }
+        request.response = response;
+        completedRequests.offer(request);
+        completedCount.incrementAndGet();
     }
 
     HttpResponse get(HttpRequest request) {
-        synchronized(this) {
-            return requestMap.get(request);
+        return request.response;
+    }
+
+    static class WorkerThreadFactory implements ThreadFactory {
+        static final AtomicInteger count = new AtomicInteger();
+        String prefix;
+
+        WorkerThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /** Measures how long each new connection takes to open, for ClientStats. */
+    static class TimedSocketFactory implements LayeredConnectionSocketFactory {
+        static final String CONNECT_NANOS = "restclient.connect-nanos";
+        ConnectionSocketFactory factory;
+
+        TimedSocketFactory(ConnectionSocketFactory factory) {
+            this.factory = factory;
+        }
+
+        public Socket createSocket(HttpContext context) throws IOException {
+            return factory.createSocket(context);
+        }
+
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                InetSocketAddress localAddress, HttpContext context) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return factory.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            } finally {
+                context.setAttribute(CONNECT_NANOS, System.nanoTime() - start);
+            }
+        }
+
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+            if (!(factory instanceof LayeredConnectionSocketFactory)) {
+                throw new UnsupportedOperationException();
+            }
+            return ((LayeredConnectionSocketFactory) factory).createLayeredSocket(socket, target, port, context);
+        }
+    }
+
+    static class DropOldestPolicy implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                return;
+            }
+            //// fail the dropped request so its future and callbacks aren't left waiting
+            Runnable oldest = executor.getQueue().poll();
+            if (oldest instanceof Engine.BuildTask) {
+                oldest = ((Engine.BuildTask) oldest).request;
+            }
+            if (oldest instanceof HttpRequest) {
+                ((HttpRequest) oldest).failed(new RejectedExecutionException("RESTClient: Request dropped from a full queue"));
+            }
+            executor.execute(r);
+        }
+    }
+
+    /** Waits for room in the queue, except on the animation thread: responses
+     * that are not buffered hold their connections until pre() delivers them,
+     * so blocking there could leave every worker waiting for a connection. The
+     * animation thread's requests wait in overflowRequests for pre() instead. */
+    class BlockPolicy implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("RESTClient: Request submitted after the client was disposed");
+            }
+            //// requests the engines build on the workers first overflow the same way
+            if ((r instanceof HttpRequest || r instanceof Engine.BuildTask) && Thread.currentThread() == animationThread) {
+                overflowRequests.add(r);
+                return;
+            }
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
         }
     }
 }
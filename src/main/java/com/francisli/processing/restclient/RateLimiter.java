@@ -0,0 +1,219 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.client.utils.DateUtils;
+
+/**
+ * A RateLimiter paces the requests a RESTClient sends to paths under a
+ * prefix, using a token bucket that refills at a steady rate and a limit on
+ * the number of requests in flight. Requests over the limits wait in a queue
+ * rather than being rejected. The limiter also slows down when the server
+ * asks it to, through Retry-After and X-RateLimit-* response headers.
+ */
+class RateLimiter implements Runnable {
+    RESTClient client;
+    String prefix;
+    double permitsPerSecond;
+    int maxInFlight;
+
+    ArrayDeque<HttpRequest> waiting = new ArrayDeque<HttpRequest>();
+    double tokens;
+    long refilled = System.nanoTime();
+    int inFlight;
+    //// set from the server's rate limit headers
+    long pausedUntil;
+    double adaptedPermitsPerSecond;
+    long adaptedUntil;
+    boolean scheduled;
+
+    RateLimiter(RESTClient client, String prefix, double permitsPerSecond, int maxInFlight) {
+        this.client = client;
+        this.prefix = prefix;
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxInFlight = maxInFlight;
+        tokens = getBurst();
+    }
+
+    void setLimits(double permitsPerSecond, int maxInFlight) {
+        synchronized (this) {
+            refill(System.nanoTime());
+            this.permitsPerSecond = permitsPerSecond;
+            this.maxInFlight = maxInFlight;
+            tokens = Math.min(tokens, getBurst());
+        }
+        start();
+    }
+
+    /** Returns true if the path is the prefix or lies under it, matching
+     * whole path segments, so "/search" matches "/search/users" but not
+     * "/searchable". */
+    boolean matches(String path) {
+        if (!path.startsWith(prefix)) {
+            return false;
+        }
+        return path.length() == prefix.length() || prefix.endsWith("/") || path.charAt(prefix.length()) == '/';
+    }
+
+    synchronized int getQueueLength() {
+        return waiting.size();
+    }
+
+    void submit(HttpRequest request) {
+        synchronized (this) {
+            waiting.add(request);
+        }
+        start();
+    }
+
+    /** Removes a cancelled request that is still waiting. */
+    synchronized void remove(HttpRequest request) {
+        waiting.remove(request);
+    }
+
+    /** Starts as many waiting requests as the limits allow. */
+    void start() {
+        while (true) {
+            HttpRequest request;
+            synchronized (this) {
+                long now = System.nanoTime();
+                refill(now);
+                if (waiting.isEmpty() || (maxInFlight > 0 && inFlight >= maxInFlight)) {
+                    return;
+                }
+                double rate = getPermitsPerSecond(now);
+                long delay = pausedUntil - now;
+                if (delay <= 0 && rate > 0 && tokens < 1) {
+                    delay = (long) ((1 - tokens) / rate * 1e9);
+                }
+                if (delay > 0) {
+                    if (!scheduled) {
+                        scheduled = true;
+                        client.getScheduler().schedule(this, delay, TimeUnit.NANOSECONDS);
+                    }
+                    return;
+                }
+                request = waiting.poll();
+                if (request.cancelled) {
+                    continue;
+                }
+                if (rate > 0) {
+                    tokens -= 1;
+                }
+                inFlight++;
+                request.rateLimiter = this;
+            }
+            try {
+                client.execute(request);
+            } catch (RuntimeException e) {
+                request.failed(e);
+            }
+        }
+    }
+
+    /** Wakes up once the next waiting request may be started. */
+    public void run() {
+        synchronized (this) {
+            scheduled = false;
+        }
+        start();
+    }
+
+    /** Called once for every request this limiter started, with its response
+     * or null if it failed. */
+    void completed(org.apache.http.HttpResponse response) {
+        synchronized (this) {
+            inFlight--;
+            if (response != null) {
+                adapt(response, System.nanoTime());
+            }
+        }
+        start();
+    }
+
+    void refill(long now) {
+        double rate = getPermitsPerSecond(now);
+        if (rate > 0) {
+            tokens = Math.min(getBurst(), tokens + (now - refilled) / 1e9 * rate);
+        }
+        refilled = now;
+    }
+
+    double getPermitsPerSecond(long now) {
+        if (adaptedUntil - now > 0 && (permitsPerSecond <= 0 || adaptedPermitsPerSecond < permitsPerSecond)) {
+            return adaptedPermitsPerSecond;
+        }
+        return permitsPerSecond;
+    }
+
+    double getBurst() {
+        return Math.max(1, permitsPerSecond);
+    }
+
+    void adapt(org.apache.http.HttpResponse response, long now) {
+        int status = response.getStatusLine().getStatusCode();
+        long retryAfter = parseRetryAfter(response.getFirstHeader("Retry-After"));
+        if (retryAfter < 0 && status == 429) {
+            retryAfter = 1000;
+        }
+        if (retryAfter >= 0) {
+            pausedUntil = Math.max(pausedUntil, now + TimeUnit.MILLISECONDS.toNanos(retryAfter));
+        }
+        long remaining = parseLong(response.getFirstHeader("X-RateLimit-Remaining"));
+        long reset = parseLong(response.getFirstHeader("X-RateLimit-Reset"));
+        if (remaining < 0 || reset < 0) {
+            return;
+        }
+        //// servers send the reset time either as seconds from now or as a Unix timestamp
+        long resetMillis = reset > 1000000000L ? reset * 1000 - System.currentTimeMillis() : reset * 1000;
+        if (resetMillis <= 0) {
+            return;
+        }
+        if (remaining == 0) {
+            pausedUntil = Math.max(pausedUntil, now + TimeUnit.MILLISECONDS.toNanos(resetMillis));
+        } else {
+            //// spread the remaining quota evenly over the rest of the window
+            adaptedPermitsPerSecond = remaining * 1000.0 / resetMillis;
+            adaptedUntil = now + TimeUnit.MILLISECONDS.toNanos(resetMillis);
+        }
+    }
+
+    static long parseRetryAfter(Header header) {
+        if (header == null) {
+            return -1;
+        }
+        long seconds = parseLong(header);
+        if (seconds >= 0) {
+            return seconds * 1000;
+        }
+        Date date = DateUtils.parseDate(header.getValue());
+        return date != null ? Math.max(0, date.getTime() - System.currentTimeMillis()) : -1;
+    }
+
+    static long parseLong(Header header) {
+        if (header != null) {
+            try {
+                return Long.parseLong(header.getValue().trim());
+            } catch (NumberFormatException e) { }
+        }
+        return -1;
+    }
+}
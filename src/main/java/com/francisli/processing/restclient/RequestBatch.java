@@ -0,0 +1,294 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>A RequestBatch collects related requests and performs them together,
+ * with at most a limited number in flight at once, completing a single future
+ * with all of their responses in the order they were added.</p>
+ *
+ * <pre>
+ * RequestBatch batch = client.batch();
+ * for (int id: ids) {
+ *   batch.GET("/items/" + id);
+ * }
+ * HttpResponse[] responses = batch.start().get();
+ * </pre>
+ *
+ * <p>Like the futures returned by GETAsync(), the responses in a batch are
+ * buffered and complete on the thread that received the last response,
+ * unless completeFuturesOnAnimationThread is set on the client. Call dispose()
+ * on each response once you are done with it.</p>
+ *
+ * @author Francis Li
+ * @usage Application
+ * @param batch RequestBatch: any variable of type RequestBatch
+ */
+public class RequestBatch {
+    RESTClient client;
+    ArrayList<HttpRequest> requests = new ArrayList<HttpRequest>();
+    int concurrency;
+    long timeout;
+    ResponseListener progressListener;
+
+    HttpResponse[] responses;
+    CompletableFuture<HttpResponse[]> future;
+    ScheduledFuture<?> timer;
+    int next;
+    int remaining;
+
+    RequestBatch(RESTClient client) {
+        this.client = client;
+    }
+
+    /** Adds a GET request to the batch.
+     *
+     * @param path String: an absolute path to a file or script on the server
+     * @return RequestBatch
+     */
+    public RequestBatch GET(String path) {
+        return add(new GetRequest(client, path));
+    }
+
+    /**
+     * @param params HashMap: a collection of key/value pairs
+     */
+    public RequestBatch GET(String path, Map params) {
+        return add(new GetRequest(client, path, params));
+    }
+
+    /** Adds a DELETE request to the batch.
+     *
+     * @param path String: an absolute path to a file or script on the server
+     * @return RequestBatch
+     */
+    public RequestBatch DELETE(String path) {
+        return add(new DeleteRequest(client, path));
+    }
+
+    /**
+     * @param params HashMap: a collection of key/value pairs
+     */
+    public RequestBatch DELETE(String path, Map params) {
+        return add(new DeleteRequest(client, path, params));
+    }
+
+    /** Adds a POST request to the batch.
+     *
+     * @param path String: an absolute path to a file or script on the server
+     * @param params HashMap: a collection of key/value parameters to send to the server
+     * @return RequestBatch
+     */
+    public RequestBatch POST(String path, Map params) {
+        return add(new PostRequest(client, path, params));
+    }
+
+    /**
+     * @param files HashMap: a collection of key/file pairs to send to the server
+     */
+    public RequestBatch POST(String path, Map params, Map files) {
+        return add(new PostRequest(client, path, params, files));
+    }
+
+    /** Adds a PUT request to the batch.
+     *
+     * @param path String: an absolute path to a file or script on the server
+     * @param params HashMap: a collection of key/value parameters to send to the server
+     * @return RequestBatch
+     */
+    public RequestBatch PUT(String path, Map params) {
+        return add(new PutRequest(client, path, params));
+    }
+
+    /** Adds a PATCH request to the batch.
+     *
+     * @param path String: an absolute path to a file or script on the server
+     * @param params HashMap: a collection of key/value parameters to send to the server
+     * @return RequestBatch
+     */
+    public RequestBatch PATCH(String path, Map params) {
+        return add(new PatchRequest(client, path, params));
+    }
+
+    /** Adds a request that has been constructed but not yet started.
+     *
+     * @param request HttpRequest: the request to add
+     * @return RequestBatch
+     */
+    public RequestBatch add(HttpRequest request) {
+        if (future != null) {
+            throw new IllegalStateException("RESTClient: Requests cannot be added to a batch that has started");
+        }
+        requests.add(request);
+        return this;
+    }
+
+    /** Sets the maximum number of requests in the batch performed at the
+     * same time. By default this is the client's maximum number of connections
+     * per route, so a batch keeps every connection busy without queueing for one.
+     *
+     * @param max int: the maximum number of requests in flight
+     * @return RequestBatch
+     */
+    public RequestBatch setConcurrency(int max) {
+        concurrency = max;
+        return this;
+    }
+
+    /** Sets how long to wait for the batch to finish. When the time runs out
+     * the batch completes with the responses received so far, leaving null in
+     * place of the rest, and the requests still in flight are cancelled.
+     *
+     * @param millis long: the timeout in milliseconds, or 0 to wait indefinitely
+     * @return RequestBatch
+     */
+    public RequestBatch setTimeout(long millis) {
+        timeout = millis;
+        return this;
+    }
+
+    /** Sets a listener that is called with each response as it arrives, on
+     * the same thread the batch completes on. Exceptions thrown by the
+     * listener are printed and do not stop the batch.
+     *
+     * @param listener ResponseListener: the listener to notify of progress
+     * @return RequestBatch
+     */
+    public RequestBatch setProgressListener(ResponseListener listener) {
+        progressListener = listener;
+        return this;
+    }
+
+    /** Returns the number of requests in the batch.
+     *
+     * @return int
+     */
+    public int size() {
+        return requests.size();
+    }
+
+    /** Starts performing the requests in the batch and returns a future that
+     * completes with their responses, in the order the requests were added.
+     * Requests that fail leave null in place of their response.
+     *
+     * @return CompletableFuture
+     */
+    public CompletableFuture<HttpResponse[]> start() {
+        int limit = concurrency > 0 ? concurrency : client.connectionManager.getDefaultMaxPerRoute();
+        synchronized (this) {
+            if (future != null) {
+                return future;
+            }
+            future = new CompletableFuture<HttpResponse[]>();
+            responses = new HttpResponse[requests.size()];
+            remaining = requests.size();
+            if (remaining == 0) {
+                future.complete(responses);
+                return future;
+            }
+            if (timeout > 0) {
+                timer = client.getScheduler().schedule(new Runnable() {
+                    public void run() {
+                        finish();
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+            }
+        }
+        //// dispatch outside the lock, since a full request queue may block
+        for (int i = 0; i < limit; i++) {
+            if (!startNext()) {
+                break;
+            }
+        }
+        return future;
+    }
+
+    boolean startNext() {
+        final int index;
+        synchronized (this) {
+            if (next >= requests.size() || future.isDone()) {
+                return false;
+            }
+            index = next++;
+        }
+        final HttpRequest request = requests.get(index);
+        CompletableFuture<HttpResponse> response;
+        try {
+            response = client.submit(request);
+        } catch (RuntimeException e) {
+            //// rejected by a full queue or a disposed client, so leave its slot empty
+            request.future.completeExceptionally(e);
+            completed(index, request, null);
+            return true;
+        }
+        response.whenComplete(new BiConsumer<HttpResponse, Throwable>() {
+            public void accept(HttpResponse response, Throwable error) {
+                completed(index, request, response);
+            }
+        });
+        return true;
+    }
+
+    void completed(int index, HttpRequest request, HttpResponse response) {
+        synchronized (this) {
+            if (future.isDone()) {
+                //// arrived after a timeout, so nobody will read it
+                if (response != null) {
+                    response.release();
+                }
+                return;
+            }
+            responses[index] = response;
+        }
+        if (progressListener != null && response != null) {
+            //// a failing listener must not stop the countdown, or the batch never completes
+            try {
+                progressListener.responseReceived(request, response);
+            } catch (RuntimeException e) {
+                System.err.println("RESTClient: An error occurred in a batch progress listener- ");
+                e.printStackTrace();
+            }
+        }
+        synchronized (this) {
+            if (--remaining == 0) {
+                finish();
+                return;
+            }
+        }
+        startNext();
+    }
+
+    synchronized void finish() {
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        if (future.complete(responses.clone())) {
+            //// on timeout, stop the requests still in flight
+            for (int i = 0; i < next; i++) {
+                if (responses[i] == null) {
+                    requests.get(i).cancel();
+                }
+            }
+        }
+    }
+}
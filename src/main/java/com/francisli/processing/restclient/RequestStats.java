@@ -0,0 +1,102 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * RequestStats collects measurements for the requests a RESTClient has made
+ * with one HTTP method to one host. Every attempt is counted, including
+ * attempts that were retried.
+ *
+ * @author Francis Li
+ * @usage Application
+ * @param stats RequestStats: any variable of type RequestStats
+ */
+public class RequestStats {
+    /** String: the host name and port the requests were made to */
+    public final String host;
+    /** String: the HTTP method of the requests, such as GET */
+    public final String method;
+    /** LatencyHistogram: time spent opening new connections, for the requests that needed one */
+    public final LatencyHistogram connect = new LatencyHistogram();
+    /** LatencyHistogram: time from sending the request until the response headers arrived */
+    public final LatencyHistogram firstByte = new LatencyHistogram();
+    /** LatencyHistogram: time from sending the request until the response was ready to deliver */
+    public final LatencyHistogram total = new LatencyHistogram();
+
+    AtomicLong requests = new AtomicLong();
+    AtomicLong errors = new AtomicLong();
+    AtomicLong retries = new AtomicLong();
+    AtomicLong bytesSent = new AtomicLong();
+    AtomicLong bytesReceived = new AtomicLong();
+    AtomicLongArray statusCounts = new AtomicLongArray(600);
+
+    RequestStats(String host, String method) {
+        this.host = host;
+        this.method = method;
+    }
+
+    /** Returns the number of responses received.
+     *
+     * @return long
+     */
+    public long getResponseCount() {
+        return requests.get();
+    }
+
+    /** Returns the number of attempts that failed without a response.
+     *
+     * @return long
+     */
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /** Returns the number of attempts that were retried.
+     *
+     * @return long
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /** Returns the number of content bytes sent in request bodies.
+     *
+     * @return long
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /** Returns the number of content bytes received in response bodies.
+     *
+     * @return long
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /** Returns the number of responses received with the specified status code.
+     *
+     * @param statusCode int: an HTTP status code, such as 200
+     * @return long
+     */
+    public long getStatusCount(int statusCode) {
+        return statusCode >= 0 && statusCode < statusCounts.length() ? statusCounts.get(statusCode) : 0;
+    }
+}
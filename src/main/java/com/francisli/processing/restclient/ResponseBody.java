@@ -0,0 +1,132 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
+
+/**
+ * A ResponseBody holds a response's content after it has been read from the
+ * connection, either in memory or, above a size threshold, in a temporary
+ * file. Content is read through a scratch buffer that is kept per thread and
+ * reused from one response to the next, so only the final copy is allocated.
+ */
+class ResponseBody {
+    static final int MAX_POOLED_BUFFER = 1024 * 1024;
+
+    //// unlike File.deleteOnExit(), forgets each file once it has been deleted
+    static final Set<File> spilled = ConcurrentHashMap.newKeySet();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("RESTClient-cleanup") {
+            public void run() {
+                for (File file: spilled) {
+                    file.delete();
+                }
+            }
+        });
+    }
+
+    static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
+
+    byte[] bytes;
+    File file;
+    long length;
+    AtomicInteger references = new AtomicInteger(1);
+
+    static ResponseBody read(InputStream in, int threshold) throws IOException {
+        ResponseBody body = new ResponseBody();
+        byte[] buffer = scratch.get();
+        int length = 0;
+        OutputStream out = null;
+        try {
+            int count;
+            while ((count = in.read(buffer, length, buffer.length - length)) >= 0) {
+                length += count;
+                if (length < buffer.length) {
+                    continue;
+                }
+                if (out == null && length < threshold) {
+                    //// grow the scratch buffer, and keep it for the next response if it isn't too big
+                    byte[] larger = new byte[Math.min(buffer.length * 2, Math.max(threshold, buffer.length + 1))];
+                    System.arraycopy(buffer, 0, larger, 0, length);
+                    buffer = larger;
+                    if (buffer.length <= MAX_POOLED_BUFFER) {
+                        scratch.set(buffer);
+                    }
+                    continue;
+                }
+                //// past the threshold, spill to a temporary file
+                if (out == null) {
+                    body.file = File.createTempFile("restclient", ".tmp");
+                    spilled.add(body.file);
+                    out = new FileOutputStream(body.file);
+                }
+                out.write(buffer, 0, length);
+                body.length += length;
+                length = 0;
+            }
+            if (out != null) {
+                out.write(buffer, 0, length);
+                body.length += length;
+            } else {
+                body.bytes = new byte[length];
+                System.arraycopy(buffer, 0, body.bytes, 0, length);
+                body.length = length;
+            }
+        } finally {
+            in.close();
+            if (out != null) {
+                out.close();
+            }
+        }
+        return body;
+    }
+
+    AbstractHttpEntity toEntity() {
+        if (file != null) {
+            return new FileEntity(file);
+        }
+        return new ByteArrayEntity(bytes);
+    }
+
+    ResponseBody retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    void delete() {
+        //// the file is shared by the copies of a coalesced response
+        if (references.decrementAndGet() == 0 && file != null) {
+            file.delete();
+            spilled.remove(file);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation, version 3.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+package com.francisli.processing.restclient;
+
+/**
+ * <p>A ResponseListener receives responses in place of the responseReceived()
+ * callback in your sketch. Set one on a RESTClient to handle all of its
+ * responses, or on an individual HttpRequest to route just that response to
+ * its own handler. Like responseReceived(), listeners are called at the
+ * beginning of a frame, before your draw() function is called.</p>
+ *
+ * <p>If your sketch implements this interface, the RESTClient calls it
+ * directly instead of looking up responseReceived() and requestFailed() by
+ * name.</p>
+ *
+ * @author Francis Li
+ * @usage Application
+ */
+public interface ResponseListener {
+    /**
+     * Called with the response to a request.
+     *
+     * @param request HttpRequest: the request that was performed
+     * @param response HttpResponse: the response from the server
+     */
+    void responseReceived(HttpRequest request, HttpResponse response);
+
+    /**
+     * Called in place of responseReceived() when a request fails without a
+     * response, once any retries have been used up. By default the error is
+     * printed to the console.
+     *
+     * @param request HttpRequest: the request that failed
+     * @param error Exception: the reason the request failed
+     */
+    default void requestFailed(HttpRequest request, Exception error) {
+        System.err.println("RESTClient: An error occurred- ");
+        error.printStackTrace();
+    }
+}
@@ -1,12 +1,76 @@
 package com.francisli.processing.restclient;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 import java.util.logging.Level;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import java.util.logging.Logger;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import oauth.signpost.OAuth;
+import oauth.signpost.commonshttp.CommonsHttpOAuthConsumer;
+import oauth.signpost.http.HttpParameters;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.StringAsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.support.AsyncResponseBuilder;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOSession;
+import org.apache.hc.core5.reactor.IOSessionListener;
+import org.apache.hc.core5.reactor.ListenerEndpoint;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
 import processing.core.PApplet;
+import processing.data.JSONObject;
 
 /**
  * Unit test for simple App.
@@ -32,6 +96,17 @@ public class RESTClientTest
         return new TestSuite( RESTClientTest.class );
     }
 
+    //// the thread pools of the servers started by the current test
+    List<ExecutorService> serverExecutors = new ArrayList<ExecutorService>();
+
+    protected void tearDown()
+    {
+        for (ExecutorService executor: serverExecutors) {
+            executor.shutdownNow();
+        }
+        serverExecutors.clear();
+    }
+
     /**
      * Executes a GET request. TODO: make it into an actual test.
      */
@@ -57,4 +132,1477 @@ public class RESTClientTest
             }
         }
     }
+
+    /**
+     * Performs a burst of requests against a local server through a small
+     * thread pool and checks that every response is delivered.
+     */
+    public void testThreadPool() throws Throwable
+    {
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                int current = concurrent.incrementAndGet();
+                peak.set(Math.max(peak.get(), current));
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) { }
+                concurrent.decrementAndGet();
+                respond(exchange, 200, "ok");
+            }
+        });
+        try {
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            client.setThreadPool(2, 100, RESTClient.BLOCK);
+            for (int i = 0; i < 20; i++) {
+                client.GET("/");
+            }
+            waitForResponses(client, sketch, 20);
+            assertEquals(20, sketch.responses.size());
+            assertTrue(peak.get() <= 2);
+            assertEquals(0, client.getQueuedRequestCount());
+            client.dispose();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Issues a burst of requests from the thread that pumps pre(), as a sketch
+     * does from draw(), with a queue far smaller than the burst. Unread
+     * responses hold their connections until pre() delivers them, so the
+     * animation thread must never block waiting for room in the queue, nor
+     * when the ASYNC engine queues requests to be built on the workers.
+     */
+    public void testBurstFromAnimationThread() throws Throwable
+    {
+        final int count = 200;
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, "ok");
+            }
+        });
+        try {
+            final int port = server.getAddress().getPort();
+            final Sketch sketch = new Sketch();
+            final AtomicInteger maxQueued = new AtomicInteger();
+            final AtomicInteger overflowed = new AtomicInteger();
+            final CountDownLatch release = new CountDownLatch(1);
+            final Throwable[] error = new Throwable[1];
+            Thread animation = new Thread() {
+                public void run() {
+                    try {
+                        RESTClient client = new RESTClient(sketch, "localhost", port);
+                        client.setThreadPool(2, 10, RESTClient.BLOCK);
+                        client.setMaxConnectionsPerRoute(2);
+                        for (int i = 0; i < count; i++) {
+                            client.GET("/");
+                            maxQueued.set(Math.max(maxQueued.get(), client.getQueuedRequestCount()));
+                        }
+                        for (int i = 0; i < 2000 && sketch.received.get() < count; i++) {
+                            client.pre();
+                            Thread.sleep(5);
+                        }
+                        client.dispose();
+
+                        client = new RESTClient(sketch, "localhost", port, 443, RESTClient.ASYNC);
+                        client.setThreadPool(1, 1, RESTClient.BLOCK);
+                        HashMap<String, String> params = new HashMap<String, String>();
+                        params.put("q", "1");
+                        //// hold the only worker in build() so the next builds fill the queue
+                        new GetRequest(client, "/", params) {
+                            void build() {
+                                try {
+                                    release.await(10, TimeUnit.SECONDS);
+                                } catch (InterruptedException e) { }
+                                super.build();
+                            }
+                        }.start();
+                        for (int i = 0; i < 500 && ((ThreadPoolExecutor) client.executor).getActiveCount() < 1; i++) {
+                            Thread.sleep(10);
+                        }
+                        client.GET("/", params);
+                        client.GET("/", params);
+                        overflowed.set(client.overflowRequests.size());
+                        release.countDown();
+                        for (int i = 0; i < 500 && sketch.received.get() < count + 3; i++) {
+                            client.pre();
+                            Thread.sleep(10);
+                        }
+                        client.dispose();
+                    } catch (Throwable t) {
+                        error[0] = t;
+                    }
+                }
+            };
+            animation.start();
+            animation.join(30000);
+            assertFalse("the animation thread is stuck", animation.isAlive());
+            if (error[0] != null) {
+                throw error[0];
+            }
+            assertEquals(count + 3, sketch.received.get());
+            assertTrue(maxQueued.get() > 10);
+            assertEquals(1, overflowed.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Puts 10,000 requests in flight against a local server and reports the
+     * platform thread count and heap usage. On Java 21 or newer the requests
+     * run on virtual threads; on older versions of Java the client falls back
+     * to its thread pool, and in both cases the platform thread count stays flat.
+     * Run the tests with the jdk21 profile to cover virtual threads.
+     */
+    public void testVirtualThreadLoad() throws Throwable
+    {
+        final int count = 10000;
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, "ok");
+            }
+        });
+        try {
+            Sketch sketch = new Sketch();
+            final RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort(), 443, RESTClient.VIRTUAL_THREADS);
+            boolean virtualThreads;
+            try {
+                Thread.class.getMethod("ofVirtual");
+                virtualThreads = true;
+            } catch (NoSuchMethodException e) {
+                virtualThreads = false;
+            }
+            assertEquals(virtualThreads, client.usesVirtualThreads());
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            Runtime runtime = Runtime.getRuntime();
+            int baselineThreads = threads.getThreadCount();
+            long baselineMemory = runtime.totalMemory() - runtime.freeMemory();
+            //// the sketch's animation thread must keep calling pre() while requests are issued
+            Thread producer = new Thread() {
+                public void run() {
+                    for (int i = 0; i < count; i++) {
+                        client.GET("/");
+                    }
+                }
+            };
+            producer.start();
+            int peakThreads = 0;
+            long peakMemory = 0;
+            long deadline = System.currentTimeMillis() + 60000;
+            while (sketch.received.get() < count && System.currentTimeMillis() < deadline) {
+                client.pre();
+                sketch.responses.clear();
+                peakThreads = Math.max(peakThreads, threads.getThreadCount());
+                peakMemory = Math.max(peakMemory, runtime.totalMemory() - runtime.freeMemory());
+                Thread.sleep(1);
+            }
+            producer.join();
+            System.out.println("RESTClientTest: virtual threads " + client.usesVirtualThreads()
+                    + ", platform threads " + baselineThreads + " -> " + peakThreads
+                    + ", heap " + (baselineMemory >> 20) + "MB -> " + (peakMemory >> 20) + "MB");
+            assertEquals(count, sketch.received.get());
+            assertTrue(peakThreads - baselineThreads < 50);
+            client.dispose();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Replaces a default header and checks that only the latest value is sent
+     * and that the underlying HttpClient is kept.
+     */
+    public void testSetHeader() throws Throwable
+    {
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, String.valueOf(exchange.getRequestHeaders().get("Authorization")));
+            }
+        });
+        try {
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            Object httpClient = client.httpClient;
+            client.setBearerAuthorizationHeader("first");
+            client.setBearerAuthorizationHeader("second");
+            assertSame(httpClient, client.httpClient);
+            client.GET("/");
+            waitForResponses(client, sketch, 1);
+            assertEquals("[Bearer second]", sketch.bodies.get(0));
+            client.dispose();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Performs a burst of requests on the non-blocking engine, and checks
+     * that responses are read off its I/O threads.
+     */
+    public void testAsyncEngine() throws Throwable
+    {
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, "ok");
+            }
+        });
+        try {
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort(), 443, RESTClient.ASYNC);
+            assertNotNull(client.engine);
+            for (int i = 0; i < 50; i++) {
+                client.GET("/");
+            }
+            waitForResponses(client, sketch, 50);
+            assertEquals(50, sketch.bodies.size());
+            assertEquals("ok", sketch.bodies.get(49));
+            //// responses are read and handed to background() off the I/O threads
+            final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+            new GetRequest(client, "/") {
+                public void background(HttpResponse response) {
+                    threads.add(Thread.currentThread().getName());
+                }
+            }.start();
+            waitForResponses(client, sketch, 51);
+            assertEquals(1, threads.size());
+            assertTrue(threads.get(0), threads.get(0).startsWith("RESTClient-response-"));
+            client.dispose();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Waits on futures without pumping pre(), then checks that futures are
+     * held back for pre() when completing on the animation thread.
+     */
+    public void testFutures() throws Throwable
+    {
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, "ok");
+            }
+        });
+        try {
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            HttpResponse response = client.GETAsync("/").get(5, TimeUnit.SECONDS);
+            assertEquals(200, response.statusCode);
+            assertEquals("ok", response.getContentAsString());
+
+            client.completeFuturesOnAnimationThread = true;
+            CompletableFuture<HttpResponse> future = client.POSTAsync("/");
+            Thread.sleep(200);
+            assertFalse(future.isDone());
+            client.pre();
+            assertEquals(200, future.get(5, TimeUnit.SECONDS).statusCode);
+            assertEquals(0, sketch.received.get());
+
+            //// failures are delivered on the animation thread too
+            ServerSocket closed = new ServerSocket(0);
+            closed.close();
+            RESTClient refused = new RESTClient(sketch, "localhost", closed.getLocalPort());
+            refused.completeFuturesOnAnimationThread = true;
+            final Thread[] completedOn = new Thread[1];
+            future = refused.GETAsync("/");
+            future.whenComplete(new BiConsumer<HttpResponse, Throwable>() {
+                public void accept(HttpResponse response, Throwable error) {
+                    completedOn[0] = Thread.currentThread();
+                }
+            });
+            for (int i = 0; i < 500 && refused.getPendingResponseCount() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertFalse(future.isDone());
+            refused.pre();
+            assertTrue(future.isCompletedExceptionally());
+            assertSame(Thread.currentThread(), completedOn[0]);
+            assertTrue(sketch.errors.isEmpty());
+            refused.dispose();
+            client.dispose();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Limits the number of callbacks per frame and checks that the backlog is
+     * carried over to the following frames.
+     */
+    public void testCallbackBudget() throws Throwable
+    {
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, "ok");
+            }
+        });
+        try {
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            client.maxCallbacksPerFrame = 3;
+            for (int i = 0; i < 8; i++) {
+                client.GET("/");
+            }
+            for (int i = 0; i < 500 && client.getPendingResponseCount() < 8; i++) {
+                Thread.sleep(10);
+            }
+            client.pre();
+            assertEquals(3, sketch.received.get());
+            assertEquals(5, client.getPendingResponseCount());
+            client.pre();
+            client.pre();
+            assertEquals(8, sketch.received.get());
+            assertEquals(0, client.getPendingResponseCount());
+            client.dispose();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Routes one request to its own listener and the rest to the sketch.
+     */
+    public void testResponseListener() throws Throwable
+    {
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, exchange.getRequestURI().getPath());
+            }
+        });
+        try {
+            Sketch sketch = new Sketch();
+            final List<String> routed = new ArrayList<String>();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            client.GET("/sketch");
+            client.GET("/listener").setResponseListener(new ResponseListener() {
+                public void responseReceived(HttpRequest request, HttpResponse response) {
+                    routed.add(response.getContentAsString());
+                }
+            });
+            for (int i = 0; i < 500 && sketch.received.get() + routed.size() < 2; i++) {
+                client.pre();
+                Thread.sleep(10);
+            }
+            assertEquals("[/sketch]", sketch.bodies.toString());
+            assertEquals("[/listener]", routed.toString());
+            client.dispose();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Streams a top-level JSON array one record at a time.
+     */
+    public void testJSONRecords() throws Throwable
+    {
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, "[ {\"id\": 1, \"name\": \"a}\\\"]\"},\n {\"id\": 2, \"tags\": [{}]} ]");
+            }
+        });
+        try {
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            HttpResponse response = client.GETAsync("/").get(5, TimeUnit.SECONDS);
+            List<Integer> ids = new ArrayList<Integer>();
+            for (JSONObject record: response.getContentAsJSONRecords()) {
+                ids.add(record.getInt("id"));
+            }
+            assertEquals("[1, 2]", ids.toString());
+            client.dispose();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Reads content in chunks, lines and XML events from a stream that
+     * returns a few bytes at a time, so that chunks, line breaks, multi-byte
+     * characters and XML tags are split across reads.
+     */
+    public void testStreamingContent() throws Throwable
+    {
+        List<String> chunks = new ArrayList<String>();
+        for (byte[] chunk: trickle("abcdefghij", "application/octet-stream").getContentChunks(4)) {
+            chunks.add(new String(chunk, "UTF-8"));
+        }
+        assertEquals("[abcd, efgh, ij]", chunks.toString());
+
+        List<String> lines = new ArrayList<String>();
+        for (String line: trickle("first\r\nna\u00efve\n\nlast", "text/plain; charset=UTF-8").getContentLines()) {
+            lines.add(line);
+        }
+        assertEquals("[first, na\u00efve, , last]", lines.toString());
+
+        XMLStreamReader reader = trickle("<?xml version=\"1.0\"?><items><item id=\"1\">caf\u00e9</item><item id=\"2\">b</item></items>",
+                "application/xml; charset=UTF-8").getContentAsXMLStream();
+        List<String> items = new ArrayList<String>();
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("item")) {
+                items.add(reader.getAttributeValue(null, "id") + ":" + reader.getElementText());
+            }
+        }
+        reader.close();
+        assertEquals("[1:caf\u00e9, 2:b]", items.toString());
+    }
+
+    /**
+     * Buffers responses, including one large enough to spill to a temporary
+     * file, and reads their content more than once. The file of a response
+     * from a future is deleted when the response is disposed of.
+     */
+    public void testBufferResponses() throws Throwable
+    {
+        final StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            large.append("0123456789");
+        }
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, exchange.getRequestURI().getPath().equals("/large") ? large.toString() : "{\"id\": 1}");
+            }
+        });
+        try {
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            client.bufferResponses = true;
+            client.responseMemoryLimit = 65536;
+            HttpRequest request = client.GET("/");
+            HttpRequest largeRequest = client.GET("/large");
+            for (int i = 0; i < 500 && (client.get(request) == null || client.get(largeRequest) == null); i++) {
+                Thread.sleep(10);
+            }
+            HttpResponse response = client.get(request);
+            assertEquals(1, response.getContentAsJSONObject().getInt("id"));
+            assertEquals("{\"id\": 1}", response.getContentAsString());
+            HttpResponse largeResponse = client.get(largeRequest);
+            assertNotNull(largeResponse.body.file);
+            assertEquals(100000, largeResponse.contentLength);
+            assertEquals(large.toString(), largeResponse.getContentAsString());
+            assertEquals(100000, largeResponse.getContentLines().iterator().next().length());
+            //// a response from a future keeps its file until it is disposed of
+            HttpResponse futureResponse = client.GETAsync("/large").get(5, TimeUnit.SECONDS);
+            File file = futureResponse.body.file;
+            assertTrue(ResponseBody.spilled.contains(file));
+            assertEquals(large.toString(), futureResponse.getContentAsString());
+            futureResponse.dispose();
+            futureResponse.dispose();
+            assertFalse(file.exists());
+            assertFalse(ResponseBody.spilled.contains(file));
+            client.dispose();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Serves fresh responses from the cache, then revalidates stale ones
+     * with a conditional request. A disk cache cleans up its files.
+     */
+    public void testCache() throws Throwable
+    {
+        final AtomicInteger served = new AtomicInteger();
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                served.incrementAndGet();
+                boolean fresh = exchange.getRequestURI().getPath().equals("/fresh");
+                exchange.getResponseHeaders().set("Cache-Control", fresh ? "max-age=60" : "max-age=0");
+                exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                } else {
+                    respond(exchange, 200, "{\"id\": 1}");
+                }
+            }
+        });
+        try {
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            client.enableCache(1 << 20);
+            for (int i = 0; i < 3; i++) {
+                assertEquals(1, client.GETAsync("/fresh").get(5, TimeUnit.SECONDS).getContentAsJSONObject().getInt("id"));
+            }
+            assertEquals(1, served.get());
+            assertEquals(1, client.getCacheMisses());
+            assertEquals(2, client.getCacheHits());
+            for (int i = 0; i < 2; i++) {
+                assertEquals(1, client.GETAsync("/stale").get(5, TimeUnit.SECONDS).getContentAsJSONObject().getInt("id"));
+            }
+            assertEquals(3, served.get());
+            assertEquals(1, client.getCacheRevalidations());
+            assertTrue(client.cacheStorage.getSize() > 0);
+            client.dispose();
+
+            //// a disk cache deletes files left by a previous run, and its own on dispose
+            File folder = Files.createTempDirectory("restclient").toFile();
+            File leftover = new File(folder, "restclient-1.cache");
+            File other = new File(folder, "notes.txt");
+            assertTrue(leftover.createNewFile());
+            assertTrue(other.createNewFile());
+            client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            client.enableCache(1 << 20, folder.getAbsolutePath());
+            assertFalse(leftover.exists());
+            assertEquals(1, client.GETAsync("/fresh").get(5, TimeUnit.SECONDS).getContentAsJSONObject().getInt("id"));
+            assertEquals(2, folder.list().length);
+            client.dispose();
+            assertEquals(1, folder.list().length);
+            assertTrue(other.delete());
+            assertTrue(folder.delete());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Issues identical GET requests while the first is still in flight and
+     * checks that they share one network call but each get a response.
+     */
+    public void testCoalesceRequests() throws Throwable
+    {
+        final AtomicInteger served = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                served.incrementAndGet();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) { }
+                respond(exchange, 200, exchange.getRequestURI().getPath());
+            }
+        });
+        try {
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            client.coalesceRequests = true;
+            for (int i = 0; i < 5; i++) {
+                client.GET("/status");
+            }
+            client.GET("/other");
+            Thread.sleep(200);
+            release.countDown();
+            waitForResponses(client, sketch, 6);
+            assertEquals(2, served.get());
+            assertEquals(6, sketch.bodies.size());
+            assertEquals(5, Collections.frequency(sketch.bodies, "/status"));
+            assertTrue(client.inFlightRequests.isEmpty());
+            client.dispose();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Times out and cancels the leader of coalesced requests, before and
+     * while its body is read, and checks that its followers, which have no
+     * timeout and were not cancelled, are sent again and get their responses.
+     */
+    public void testCoalescedFollowersOutliveLeader() throws Throwable
+    {
+        final AtomicInteger served = new AtomicInteger();
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                served.incrementAndGet();
+                String path = exchange.getRequestURI().getPath();
+                try {
+                    if (path.equals("/partial")) {
+                        //// send the headers and part of the body, then stall
+                        exchange.sendResponseHeaders(200, 0);
+                        OutputStream out = exchange.getResponseBody();
+                        out.write("/par".getBytes("UTF-8"));
+                        out.flush();
+                        Thread.sleep(600);
+                        out.write("tial".getBytes("UTF-8"));
+                        out.close();
+                        return;
+                    }
+                    Thread.sleep(600);
+                } catch (InterruptedException e) { }
+                respond(exchange, 200, path);
+            }
+        });
+        try {
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            client.coalesceRequests = true;
+            client.requestTimeout = 200;
+            client.GET("/status");
+            client.requestTimeout = 0;
+            client.GET("/status");
+            client.GET("/status");
+            waitForResponses(client, sketch, 2);
+            assertEquals(1, sketch.errors.size());
+            assertTrue(sketch.errors.get(0) instanceof TimeoutException);
+            assertEquals("[/status, /status]", sketch.bodies.toString());
+            assertEquals(2, served.get());
+
+            HttpRequest leader = client.GET("/other");
+            client.GET("/other");
+            Thread.sleep(100);
+            assertTrue(leader.cancel());
+            waitForResponses(client, sketch, 3);
+            assertEquals("/other", sketch.bodies.get(2));
+            assertEquals(1, sketch.errors.size());
+            assertTrue(client.inFlightRequests.isEmpty());
+
+            served.set(0);
+            client.requestTimeout = 300;
+            client.GET("/partial");
+            client.requestTimeout = 0;
+            client.GET("/partial");
+            client.GET("/partial");
+            waitForResponses(client, sketch, 5);
+            assertEquals(2, sketch.errors.size());
+            assertTrue(sketch.errors.get(1) instanceof TimeoutException);
+            assertEquals("[/partial, /partial]", sketch.bodies.subList(3, sketch.bodies.size()).toString());
+            assertEquals(2, served.get());
+            assertTrue(client.inFlightRequests.isEmpty());
+            client.dispose();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Requests compressed responses and checks that they are decoded as they
+     * are read, or before delivery when buffered, and that large request
+     * bodies are sent compressed.
+     */
+    public void testCompression() throws Throwable
+    {
+        final List<String> requestEncodings = Collections.synchronizedList(new ArrayList<String>());
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                String requestEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+                requestEncodings.add(String.valueOf(requestEncoding));
+                if ("gzip".equals(requestEncoding)) {
+                    in = new GZIPInputStream(in);
+                }
+                ByteArrayOutputStream request = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                for (int count; (count = in.read(buffer)) >= 0; ) {
+                    request.write(buffer, 0, count);
+                }
+                String body = request.size() > 0 ? request.toString("UTF-8") : "compressed";
+                String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                if (accept == null || !accept.contains("gzip")) {
+                    respond(exchange, 200, body);
+                    return;
+                }
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+                gzip.write(body.getBytes("UTF-8"));
+                gzip.close();
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                exchange.sendResponseHeaders(200, compressed.size());
+                OutputStream out = exchange.getResponseBody();
+                compressed.writeTo(out);
+                out.close();
+            }
+        });
+        try {
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            client.requestCompressionThreshold = 100;
+            HttpRequest request = client.GET("/");
+            HashMap<String, String> params = new HashMap<String, String>();
+            params.put("small", "1");
+            client.POST("/", params);
+            StringBuilder large = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                large.append("0123456789");
+            }
+            params.put("small", large.toString());
+            client.POST("/", params);
+            waitForResponses(client, sketch, 3);
+            assertEquals(3, sketch.bodies.size());
+            assertTrue(sketch.bodies.contains("compressed"));
+            assertTrue(sketch.bodies.contains("small=1"));
+            assertTrue(sketch.bodies.contains("small=" + large));
+            assertEquals(1, Collections.frequency(requestEncodings, "gzip"));
+            assertNull(request.response.getHeader("Content-Encoding"));
+            assertNull(request.response.body);
+
+            client.bufferResponses = true;
+            request = client.GET("/");
+            waitForResponses(client, sketch, 4);
+            assertEquals("compressed", sketch.bodies.get(3));
+            assertNull(request.response.getHeader("Content-Encoding"));
+            assertNotNull(request.response.body);
+            client.dispose();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Streams request bodies from a file, an input stream and a producer, and
+     * checks that the server receives them intact, then checks that sketches
+     * passing null params still call the form overloads.
+     */
+    public void testStreamingUploads() throws Throwable
+    {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[4096];
+                for (int count; (count = in.read(buffer)) >= 0; ) {
+                    body.write(buffer, 0, count);
+                }
+                received.add(exchange.getRequestMethod() + " " + exchange.getRequestHeaders().getFirst("Content-Type")
+                        + " " + exchange.getRequestHeaders().getFirst("Transfer-Encoding") + " " + body.size());
+                respond(exchange, 200, "ok");
+            }
+        });
+        File file = File.createTempFile("restclient-test", ".dat");
+        try {
+            byte[] data = new byte[200000];
+            Files.write(file.toPath(), data);
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            client.setThreadPool(1, 10, RESTClient.BLOCK);
+            client.POSTBody("/", "application/octet-stream", file.toPath());
+            client.PUTBody("/", "application/octet-stream", new ByteArrayInputStream(data));
+            client.PATCHBody("/", "text/plain", new ContentProducer() {
+                public void writeTo(OutputStream out) throws IOException {
+                    out.write("hello".getBytes("UTF-8"));
+                }
+            });
+            waitForResponses(client, sketch, 3);
+            assertEquals("[POST application/octet-stream null 200000, "
+                    + "PUT application/octet-stream chunked 200000, "
+                    + "PATCH text/plain chunked 5]", received.toString());
+
+            received.clear();
+            HashMap<String, String> files = null;
+            client.POST("/", null, null);
+            client.PUT("/", null, files);
+            client.PATCH("/", null, null);
+            waitForResponses(client, sketch, 6);
+            assertEquals("[POST null null 0, PUT null null 0, PATCH null null 0]", received.toString());
+            client.dispose();
+        } finally {
+            server.stop(0);
+            file.delete();
+        }
+    }
+
+    /**
+     * Performs a batch with a concurrency limit and checks that responses are
+     * returned in order, then times out a batch with a slow request, and
+     * finishes batches whose progress listener throws or whose requests are
+     * rejected by a full queue.
+     */
+    public void testBatch() throws Throwable
+    {
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                int current = concurrent.incrementAndGet();
+                peak.set(Math.max(peak.get(), current));
+                String path = exchange.getRequestURI().getPath();
+                try {
+                    Thread.sleep(path.equals("/slow") ? 2000 : 5);
+                } catch (InterruptedException e) { }
+                concurrent.decrementAndGet();
+                respond(exchange, 200, path);
+            }
+        });
+        try {
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            final AtomicInteger progress = new AtomicInteger();
+            RequestBatch batch = client.batch().setConcurrency(3).setProgressListener(new ResponseListener() {
+                public void responseReceived(HttpRequest request, HttpResponse response) {
+                    progress.incrementAndGet();
+                }
+            });
+            for (int i = 0; i < 30; i++) {
+                batch.GET("/" + i);
+            }
+            HttpResponse[] responses = batch.start().get(10, TimeUnit.SECONDS);
+            assertEquals(30, responses.length);
+            for (int i = 0; i < 30; i++) {
+                assertEquals("/" + i, responses[i].getContentAsString());
+            }
+            assertEquals(30, progress.get());
+            assertTrue(peak.get() <= 3);
+            assertEquals(0, sketch.received.get());
+
+            responses = client.batch().GET("/fast").GET("/slow").setTimeout(500).start().get(10, TimeUnit.SECONDS);
+            assertEquals("/fast", responses[0].getContentAsString());
+            assertNull(responses[1]);
+
+            responses = client.batch().GET("/1").GET("/2").setConcurrency(1).setProgressListener(new ResponseListener() {
+                public void responseReceived(HttpRequest request, HttpResponse response) {
+                    throw new IllegalStateException("broken listener");
+                }
+            }).start().get(10, TimeUnit.SECONDS);
+            assertEquals("/1", responses[0].getContentAsString());
+            assertEquals("/2", responses[1].getContentAsString());
+
+            client.setThreadPool(1, 1, RESTClient.FAIL);
+            responses = client.batch().GET("/slow").GET("/1").GET("/2").GET("/3").setConcurrency(4).start().get(10, TimeUnit.SECONDS);
+            assertEquals("/slow", responses[0].getContentAsString());
+            assertEquals("/1", responses[1].getContentAsString());
+            assertNull(responses[2]);
+            assertNull(responses[3]);
+            client.dispose();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Paces a burst of requests with a rate limit, then checks that the
+     * limiter waits out a Retry-After header, matches prefixes on whole path
+     * segments and forgets requests cancelled while they wait.
+     */
+    public void testRateLimit() throws Throwable
+    {
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final List<Long> limitedTimes = Collections.synchronizedList(new ArrayList<Long>());
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if (exchange.getRequestURI().getPath().startsWith("/limited")) {
+                    limitedTimes.add(System.nanoTime());
+                    if (limitedTimes.size() == 1) {
+                        exchange.getResponseHeaders().set("Retry-After", "1");
+                        respond(exchange, 429, "slow down");
+                        return;
+                    }
+                    respond(exchange, 200, "ok");
+                    return;
+                }
+                int current = concurrent.incrementAndGet();
+                peak.set(Math.max(peak.get(), current));
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) { }
+                concurrent.decrementAndGet();
+                respond(exchange, 200, "ok");
+            }
+        });
+        try {
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            client.setRateLimit(20, 2);
+            client.setRateLimit("/limited", 0, 1);
+            long start = System.nanoTime();
+            for (int i = 0; i < 30; i++) {
+                client.GET("/");
+            }
+            assertTrue(client.getRateLimitQueueLength() > 0);
+            waitForResponses(client, sketch, 30);
+            assertEquals(30, sketch.responses.size());
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(400));
+            assertTrue(peak.get() <= 2);
+            assertEquals(0, client.getRateLimitQueueLength());
+
+            client.GET("/limited");
+            client.GET("/limited");
+            waitForResponses(client, sketch, 32);
+            assertEquals(2, limitedTimes.size());
+            assertTrue(limitedTimes.get(1) - limitedTimes.get(0) >= TimeUnit.MILLISECONDS.toNanos(900));
+
+            //// prefixes match whole path segments
+            assertEquals("/limited", client.getRateLimiter(new GetRequest(client, "/limited/1")).prefix);
+            assertEquals("/", client.getRateLimiter(new GetRequest(client, "/limitedness")).prefix);
+
+            //// cancelled requests leave the queue
+            client.setRateLimit("/paced", 0.1f, 0);
+            client.GET("/paced");
+            List<HttpRequest> waiting = new ArrayList<HttpRequest>();
+            for (int i = 0; i < 3; i++) {
+                waiting.add(client.GET("/paced"));
+            }
+            assertEquals(3, client.getRateLimitQueueLength());
+            for (HttpRequest request: waiting) {
+                assertTrue(request.cancel());
+            }
+            assertEquals(0, client.getRateLimitQueueLength());
+            client.dispose();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Retries requests that fail with a retryable status, leaves POST requests
+     * alone, and reports connection failures through requestFailed().
+     */
+    public void testRetries() throws Throwable
+    {
+        final AtomicInteger served = new AtomicInteger();
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                int count = served.incrementAndGet();
+                if (exchange.getRequestMethod().equals("POST") || count < 3) {
+                    respond(exchange, 503, "unavailable");
+                } else {
+                    respond(exchange, 200, "ok");
+                }
+            }
+        });
+        try {
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            client.maxAttempts = 3;
+            client.retryDelay = 10;
+            client.GET("/");
+            waitForResponses(client, sketch, 1);
+            assertEquals(3, served.get());
+            assertEquals(200, sketch.responses.get(0).statusCode);
+            assertEquals(2, client.retryCount.get());
+
+            client.POST("/");
+            waitForResponses(client, sketch, 2);
+            assertEquals(4, served.get());
+            assertEquals(503, sketch.responses.get(1).statusCode);
+            client.dispose();
+        } finally {
+            server.stop(0);
+        }
+
+        Sketch sketch = new Sketch();
+        RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+        client.maxAttempts = 2;
+        client.retryDelay = 10;
+        client.GET("/");
+        for (int i = 0; i < 500 && sketch.errors.isEmpty(); i++) {
+            client.pre();
+            Thread.sleep(10);
+        }
+        assertEquals(1, sketch.errors.size());
+        assertEquals(1, client.retryCount.get());
+        client.dispose();
+    }
+
+    /**
+     * Times out requests to a server that stops responding, cancels a request
+     * in flight, and checks that dispose() cancels outstanding requests.
+     */
+    public void testTimeoutsAndCancellation() throws Throwable
+    {
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(1500);
+                } catch (InterruptedException e) { }
+                respond(exchange, 200, "late");
+            }
+        });
+        try {
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            client.readTimeout = 200;
+            client.GET("/");
+            for (int i = 0; i < 500 && sketch.errors.isEmpty(); i++) {
+                client.pre();
+                Thread.sleep(10);
+            }
+            assertTrue(sketch.errors.get(0) instanceof SocketTimeoutException);
+
+            client.readTimeout = 0;
+            client.requestTimeout = 200;
+            try {
+                client.GETAsync("/").get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+
+            client.requestTimeout = 0;
+            HttpRequest request = client.GET("/");
+            Thread.sleep(100);
+            assertTrue(request.cancel());
+            assertFalse(request.cancel());
+            for (int i = 0; i < 100 && client.connectionManager.getTotalStats().getLeased() > 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, client.connectionManager.getTotalStats().getLeased());
+            client.pre();
+            assertEquals(1, sketch.errors.size());
+            assertEquals(0, sketch.received.get());
+
+            CompletableFuture<HttpResponse> future = client.GETAsync("/");
+            client.dispose();
+            assertTrue(future.isCancelled());
+            assertTrue(client.outstandingRequests.isEmpty());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Makes a few requests and checks the recorded measurements, both from
+     * the sketch and from the plain text endpoint.
+     */
+    public void testStats() throws Throwable
+    {
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, exchange.getRequestURI().getPath().equals("/missing") ? 404 : 200, "ok");
+            }
+        });
+        try {
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            for (int i = 0; i < 4; i++) {
+                client.GET("/");
+            }
+            HashMap<String, String> params = new HashMap<String, String>();
+            params.put("name", "value");
+            client.POST("/missing", params);
+            waitForResponses(client, sketch, 5);
+            ClientStats stats = client.getStats();
+            RequestStats get = stats.get(client.host, "GET");
+            assertEquals(4, get.getResponseCount());
+            assertEquals(4, get.getStatusCount(200));
+            assertEquals(8, get.getBytesReceived());
+            assertEquals(4, get.total.getCount());
+            assertTrue(get.total.getPercentile(99) >= get.total.getPercentile(50));
+            assertTrue(get.connect.getCount() >= 1);
+            RequestStats post = stats.get(client.host, "POST");
+            assertEquals(1, post.getStatusCount(404));
+            assertEquals(10, post.getBytesSent());
+            assertEquals(2, stats.getRequestStats().length);
+            assertEquals(5, stats.queueWait.getCount());
+
+            ServerSocket socket = new ServerSocket(0);
+            int port = socket.getLocalPort();
+            socket.close();
+            client.startStatsServer(port);
+            Scanner scanner = new Scanner(new URL("http://localhost:" + port + "/metrics").openStream(), "UTF-8").useDelimiter("\\A");
+            String text = scanner.next();
+            scanner.close();
+            assertTrue(text.contains("restclient_status_total{host=\"localhost:" + server.getAddress().getPort() + "\",method=\"GET\",code=\"200\"} 4\n"));
+            assertTrue(text.contains("restclient_total_ms{host="));
+            assertTrue(text.contains("restclient_pool_connections{state=\"leased\"} 0\n"));
+            client.dispose();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Signs requests on the worker with the cached signer, checks that its
+     * signatures match Signpost's own consumer, and that the signer is
+     * replaced when the credentials change. Also signs on a worker with the
+     * ASYNC engine, whose execute() runs on the calling thread.
+     */
+    public void testOAuth() throws Throwable
+    {
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, String.valueOf(exchange.getRequestHeaders().getFirst("Authorization")));
+            }
+        });
+        try {
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            client.useOAuth = true;
+            client.oauthConsumerKey = "key";
+            client.oauthConsumerSecret = "secret";
+            client.oauthAccessToken = "token";
+            client.oauthAccessTokenSecret = "token secret";
+            HttpRequest request = client.GET("/search", new HashMap<String, String>() {{ put("q", "a b"); }});
+            assertNull(request.request.getFirstHeader("Authorization"));
+            waitForResponses(client, sketch, 1);
+            assertTrue(sketch.bodies.get(0).startsWith("OAuth "));
+            OAuthSigner signer = client.getOAuthSigner();
+            assertSame(signer, client.getOAuthSigner());
+
+            HttpGet signed = new HttpGet("http://localhost/search?q=a%20b");
+            signer.sign(signed);
+            HttpParameters parameters = OAuth.oauthHeaderToParamsMap(signed.getFirstHeader("Authorization").getValue());
+            assertNotNull(parameters.getFirst("oauth_signature"));
+            HttpGet expected = new HttpGet("http://localhost/search?q=a%20b");
+            expected.setHeader("Authorization", "OAuth oauth_nonce=\"" + parameters.getFirst("oauth_nonce")
+                    + "\", oauth_timestamp=\"" + parameters.getFirst("oauth_timestamp") + "\"");
+            CommonsHttpOAuthConsumer consumer = new CommonsHttpOAuthConsumer("key", "secret");
+            consumer.setTokenWithSecret("token", "token secret");
+            consumer.sign(expected);
+            assertEquals(OAuth.oauthHeaderToParamsMap(expected.getFirstHeader("Authorization").getValue()).getFirst("oauth_signature"),
+                    parameters.getFirst("oauth_signature"));
+
+            client.oauthAccessToken = "another token";
+            assertNotSame(signer, client.getOAuthSigner());
+            client.dispose();
+
+            sketch = new Sketch();
+            client = new RESTClient(sketch, "localhost", server.getAddress().getPort(), 443, RESTClient.ASYNC);
+            client.useOAuth = true;
+            client.oauthConsumerKey = "key";
+            client.oauthConsumerSecret = "secret";
+            final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+            new GetRequest(client, "/plain") {
+                void configure() throws IOException {
+                    threads.add(Thread.currentThread().getName());
+                    super.configure();
+                }
+            }.start();
+            waitForResponses(client, sketch, 1);
+            assertTrue(sketch.bodies.get(0).startsWith("OAuth "));
+            assertTrue(threads.get(0), threads.get(0).startsWith("RESTClient-worker-"));
+            client.dispose();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Checks that query strings and request entities are built on a worker
+     * rather than when the request is made, from the params as they were
+     * then, and that build errors are reported to requestFailed(). On the
+     * ASYNC engine only requests with something to build leave the caller.
+     */
+    public void testDeferredBuild() throws Throwable
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if (exchange.getRequestURI().getPath().equals("/slow")) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) { }
+                }
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[4096];
+                for (int count; (count = in.read(buffer)) >= 0; ) {
+                    body.write(buffer, 0, count);
+                }
+                String contentType = String.valueOf(exchange.getRequestHeaders().getFirst("Content-Type"));
+                respond(exchange, 200, exchange.getRequestMethod() + " " + exchange.getRequestURI()
+                        + " " + contentType.split(";")[0] + " " + body.toString("UTF-8").contains("hello"));
+            }
+        });
+        File file = File.createTempFile("restclient-test", ".txt");
+        try {
+            Files.write(file.toPath(), "hello".getBytes("UTF-8"));
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            client.setThreadPool(1, 10, RESTClient.BLOCK);
+            client.GET("/slow");
+            HashMap<String, String> params = new HashMap<String, String>();
+            params.put("q", "a b");
+            HttpRequest get = client.GET("/search", params);
+            HashMap<String, String> files = new HashMap<String, String>();
+            files.put("file", file.getAbsolutePath());
+            HttpRequest post = client.POST("/upload", params, files);
+            //// nothing is encoded or read until a worker picks the requests up
+            assertEquals("/search", ((HttpRequestBase) get.request).getURI().getPath());
+            assertNull(((HttpRequestBase) get.request).getURI().getQuery());
+            assertNull(((HttpEntityEnclosingRequestBase) post.request).getEntity());
+            params.put("q", "changed");
+            release.countDown();
+            waitForResponses(client, sketch, 3);
+            assertEquals("[GET /slow null false, GET /search?q=a+b null false, POST /upload multipart/form-data true]",
+                    sketch.bodies.toString());
+
+            //// errors building the request are reported to requestFailed()
+            client.POSTBody("/", "text/plain", new Object());
+            for (int i = 0; i < 500 && sketch.errors.isEmpty(); i++) {
+                client.pre();
+                Thread.sleep(10);
+            }
+            assertEquals(1, sketch.errors.size());
+            assertTrue(sketch.errors.get(0) instanceof IllegalArgumentException);
+            client.dispose();
+
+            //// the ASYNC engine builds on the client's workers, and only requests with something to build
+            sketch = new Sketch();
+            client = new RESTClient(sketch, "localhost", server.getAddress().getPort(), 443, RESTClient.ASYNC);
+            final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+            GetRequest plain = new GetRequest(client, "/plain");
+            plain.start();
+            assertTrue(plain.built);
+            new GetRequest(client, "/search", params) {
+                void build() {
+                    threads.add(Thread.currentThread().getName());
+                    super.build();
+                }
+            }.start();
+            waitForResponses(client, sketch, 2);
+            assertTrue(sketch.bodies.contains("GET /search?q=changed null false"));
+            assertTrue(threads.get(0), threads.get(0).startsWith("RESTClient-worker-"));
+            client.dispose();
+        } finally {
+            server.stop(0);
+            file.delete();
+        }
+    }
+
+    /**
+     * Follows rel="next" links through ten pages, starting only once they
+     * are read and fetching only a few pages ahead of the reader, and stops
+     * early at a page limit or when the stop condition matches a page.
+     */
+    public void testPaginate() throws Throwable
+    {
+        final AtomicInteger served = new AtomicInteger();
+        final CountDownLatch held = new CountDownLatch(1);
+        HttpServer server = startServer(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                served.incrementAndGet();
+                if (exchange.getRequestURI().getPath().equals("/held")) {
+                    try {
+                        held.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) { }
+                }
+                String query = exchange.getRequestURI().getQuery();
+                int page = query == null ? 1 : Integer.parseInt(query.substring(query.indexOf('=') + 1));
+                if (page < 10) {
+                    exchange.getResponseHeaders().add("Link", "<http://localhost:" + exchange.getLocalAddress().getPort()
+                            + "/items?page=" + (page + 1) + ">; rel=\"next\", <http://localhost/items?page=10>; rel=\"last\"");
+                }
+                respond(exchange, 200, "page " + page);
+            }
+        });
+        try {
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", server.getAddress().getPort());
+            Paginator pages = client.paginate("/items");
+            //// nothing is fetched until the pages are first read
+            Thread.sleep(50);
+            assertEquals(0, served.get());
+            //// only the prefetched pages are fetched until they are read
+            for (int i = 0; i < 500 && pages.available() < 2; i++) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            assertEquals(2, pages.available());
+            assertEquals(2, served.get());
+            List<String> bodies = new ArrayList<String>();
+            for (HttpResponse page: pages) {
+                bodies.add(page.getContentAsString());
+            }
+            assertEquals("[page 1, page 2, page 3, page 4, page 5, page 6, page 7, page 8, page 9, page 10]", bodies.toString());
+            assertEquals(10, pages.getPageCount());
+            assertNull(pages.getError());
+
+            pages = client.paginate("/items").setPageLimit(4);
+            int count = 0;
+            while (pages.hasNext()) {
+                pages.next();
+                count++;
+            }
+            assertEquals(4, count);
+
+            //// the stop condition applies from the first page, however quickly it arrives
+            pages = client.paginate("/items").setPrefetch(5);
+            Thread.sleep(50);
+            pages.setStopCondition(new Predicate<HttpResponse>() {
+                public boolean test(HttpResponse page) {
+                    return page.getContentAsString().equals("page 1");
+                }
+            });
+            count = 0;
+            for (HttpResponse page: pages) {
+                count++;
+            }
+            assertEquals(1, count);
+
+            //// a page rejected by a full queue ends the paging with the error
+            client.setThreadPool(1, 1, RESTClient.FAIL);
+            served.set(0);
+            pages = client.paginate("/held");
+            pages.available();
+            for (int i = 0; i < 500 && served.get() < 1; i++) {
+                Thread.sleep(10);
+            }
+            client.GET("/items");
+            held.countDown();
+            assertTrue(pages.hasNext());
+            assertEquals("page 1", pages.next().getContentAsString());
+            assertFalse(pages.hasNext());
+            assertTrue(pages.getError() instanceof RejectedExecutionException);
+            client.dispose();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Sends GETs, a form POST and a streamed upload over HTTP/2 and checks
+     * that they all share one connection, that bodies are written and
+     * responses read off the I/O threads, and that the streams in flight
+     * stay within the limit.
+     */
+    public void testHttp2Engine() throws Throwable
+    {
+        final AtomicInteger connections = new AtomicInteger();
+        HttpAsyncServer server = startH2Server(connections);
+        try {
+            ListenerEndpoint endpoint = server.listen(new InetSocketAddress("localhost", 0), URIScheme.HTTP).get();
+            Sketch sketch = new Sketch();
+            RESTClient client = new RESTClient(sketch, "localhost", ((InetSocketAddress) endpoint.getAddress()).getPort(), 443, RESTClient.HTTP2);
+            client.setHeader("X-Test", "h2");
+            for (int i = 0; i < 20; i++) {
+                HashMap<String, String> params = new HashMap<String, String>();
+                params.put("n", String.valueOf(i));
+                client.GET("/items", params);
+            }
+            waitForResponses(client, sketch, 20);
+            HashMap<String, String> params = new HashMap<String, String>();
+            params.put("a", "1 2");
+            client.POST("/form", params);
+            waitForResponses(client, sketch, 21);
+            assertEquals(21, sketch.bodies.size());
+            assertTrue(sketch.bodies.contains("GET /items?n=7 h2 null"));
+            assertEquals("POST /form h2 a=1+2", sketch.bodies.get(20));
+            assertEquals("OK", sketch.responses.get(0).statusMessage);
+            //// a large body of unknown length is streamed rather than copied into memory,
+            //// by a writer that the client's worker queue can't drop or reject
+            final StringBuilder large = new StringBuilder();
+            for (int i = 0; i < 20000; i++) {
+                large.append("0123456789");
+            }
+            final List<String> writers = Collections.synchronizedList(new ArrayList<String>());
+            client.PUTBody("/upload", "text/plain", new ContentProducer() {
+                public void writeTo(OutputStream out) throws IOException {
+                    writers.add(Thread.currentThread().getName());
+                    out.write(large.toString().getBytes("UTF-8"));
+                }
+            });
+            final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+            new GetRequest(client, "/thread") {
+                public void background(HttpResponse response) {
+                    threads.add(Thread.currentThread().getName());
+                }
+            }.start();
+            waitForResponses(client, sketch, 23);
+            assertTrue(sketch.bodies.contains("PUT /upload h2 " + large));
+            assertTrue(writers.get(0), writers.get(0).startsWith("RESTClient-h2-body-"));
+            assertTrue(threads.get(0), threads.get(0).startsWith("RESTClient-response-"));
+            //// requests beyond the maximum number of connections wait for a stream
+            client.setMaxConnections(2);
+            for (int i = 0; i < 10; i++) {
+                client.GET("/limited");
+            }
+            assertEquals(2, client.engine.getPoolStats().getMax());
+            assertTrue(client.engine.getPoolStats().getLeased() <= 2);
+            waitForResponses(client, sketch, 33);
+            assertEquals(33, sketch.bodies.size());
+            assertEquals(0, client.engine.getPoolStats().getLeased());
+            //// every request shared one connection
+            assertEquals(1, connections.get());
+            client.dispose();
+        } finally {
+            server.close(CloseMode.IMMEDIATE);
+        }
+    }
+
+    public static class Sketch extends PApplet
+    {
+        List<HttpResponse> responses = new ArrayList<HttpResponse>();
+        List<String> bodies = new ArrayList<String>();
+        AtomicInteger received = new AtomicInteger();
+        List<Exception> errors = new ArrayList<Exception>();
+
+        public void responseReceived(HttpRequest request, HttpResponse response) {
+            responses.add(response);
+            bodies.add(response.getContentAsString());
+            received.incrementAndGet();
+        }
+
+        public void requestFailed(HttpRequest request, Exception error) {
+            errors.add(error);
+        }
+    }
+
+    static {
+        //// the stub server writes headers and body separately, so avoid Nagle delays on loopback
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    HttpServer startServer(HttpHandler handler) throws IOException
+    {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", handler);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        serverExecutors.add(executor);
+        server.setExecutor(executor);
+        server.start();
+        return server;
+    }
+
+    static HttpAsyncServer startH2Server(final AtomicInteger connections) throws IOException
+    {
+        HttpAsyncServer server = H2ServerBootstrap.bootstrap()
+                .setVersionPolicy(HttpVersionPolicy.FORCE_HTTP_2)
+                .setIOSessionListener(new IOSessionListener() {
+                    public void connected(IOSession session) {
+                        connections.incrementAndGet();
+                    }
+
+                    public void startTls(IOSession session) { }
+                    public void inputReady(IOSession session) { }
+                    public void outputReady(IOSession session) { }
+                    public void timeout(IOSession session) { }
+                    public void exception(IOSession session, Exception e) { }
+                    public void disconnected(IOSession session) { }
+                })
+                .register("*", new AsyncServerRequestHandler<Message<org.apache.hc.core5.http.HttpRequest, String>>() {
+                    public AsyncRequestConsumer<Message<org.apache.hc.core5.http.HttpRequest, String>> prepare(
+                            org.apache.hc.core5.http.HttpRequest request, EntityDetails details, HttpContext context) {
+                        return new BasicRequestConsumer<String>(new StringAsyncEntityConsumer());
+                    }
+
+                    public void handle(Message<org.apache.hc.core5.http.HttpRequest, String> message, ResponseTrigger trigger,
+                            HttpContext context) throws HttpException, IOException {
+                        org.apache.hc.core5.http.HttpRequest request = message.getHead();
+                        org.apache.hc.core5.http.Header test = request.getFirstHeader("X-Test");
+                        String body = request.getMethod() + " " + request.getPath() + " " + (test == null ? null : test.getValue())
+                                + " " + message.getBody();
+                        trigger.submitResponse(AsyncResponseBuilder.create(200)
+                                .setEntity(body, org.apache.hc.core5.http.ContentType.TEXT_PLAIN)
+                                .build(), context);
+                    }
+                })
+                .create();
+        server.start();
+        return server;
+    }
+
+    static void respond(HttpExchange exchange, int status, String body) throws IOException
+    {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    /** Returns an unbuffered response whose content arrives three bytes at a time. */
+    static HttpResponse trickle(String content, String contentType) throws IOException
+    {
+        InputStream in = new ByteArrayInputStream(content.getBytes("UTF-8")) {
+            public synchronized int read(byte[] buffer, int offset, int length) {
+                return super.read(buffer, offset, Math.min(length, 3));
+            }
+        };
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new InputStreamEntity(in, org.apache.http.entity.ContentType.parse(contentType)));
+        return new HttpResponse(response);
+    }
+
+    static void waitForResponses(RESTClient client, Sketch sketch, int count) throws Throwable
+    {
+        for (int i = 0; i < 500 && sketch.responses.size() < count; i++) {
+            client.pre();
+            Thread.sleep(10);
+        }
+    }
 }